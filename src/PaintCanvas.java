@@ -32,6 +32,13 @@ public class PaintCanvas extends Canvas implements MouseListener, MouseMotionLis
 	private BufferedImage mBrush = null;
 	/** For finding objects as we paint */
 	private BufferedImage mObject = null;
+	/** mImage resized to SKETCH_SIZE, the sketch of objectImage */
+	private BufferedImage mSketch = null;
+	/** The area painted since objectImage was updated, or null */
+	private Rectangle mDirty = null;
+	
+	/** Size of the sketch used in the queries */
+	public static final int SKETCH_SIZE = 100;
 	
 	titech.image.dsp.ObjectImage objectImage;
 	
@@ -58,7 +65,8 @@ public class PaintCanvas extends Canvas implements MouseListener, MouseMotionLis
 	/** Main Retrieval object, to pass information to other Retrieval threads */
 	titech.db.Retrieval retrieval;
 	titech.db.ImageRetrieval iretrieval;
-	Thread iretrievalThread;
+	/** Runs the queries of the strokes, the newest cancels the older ones */
+	titech.db.QueryScheduler scheduler = new titech.db.QueryScheduler();
 	
 	public void setRetrieval(titech.db.Retrieval ret) {
 		retrieval = ret;
@@ -143,6 +151,8 @@ public class PaintCanvas extends Canvas implements MouseListener, MouseMotionLis
 		gi.dispose();
 		mUndo = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		mObject = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);				
+		mSketch = null;
+		mDirty = null;
 	}
 	
 	public void setStroke(int size) {
@@ -200,19 +210,23 @@ public class PaintCanvas extends Canvas implements MouseListener, MouseMotionLis
 		// clear all regions
 		objectImage.clear();
 		// add the whole
-		objectImage.setRegions(Utilities.resize(mImage, 100));
-		// start new retrieval thread
-		try {			
-			if (iretrievalThread!=null) 
-				iretrievalThread.join(); // wait
-		} catch (Exception exc) {
-			System.err.println("PaintCanvas: "+exc);
-		}	
-		if (iretrieval != null) {
-			iretrieval.setQuery(objectImage.getHistogram());
-			iretrievalThread = new Thread(iretrieval);
-			iretrievalThread.start();
-		}
+		mSketch = null;
+		updateSketch();
+		// start new retrieval, cancelling the previous one
+		retrieveImages();
+	}
+	
+	/** Queries the whole sketch, cancelling the previous query */
+	void retrieveImages() {
+		if (iretrieval == null) return;
+		// the next stroke updates the histogram, the query keeps a copy
+		final double[] histogram = objectImage.getHistogram().clone();
+		iretrieval.setQuery(histogram);
+		scheduler.submit(titech.db.QueryScheduler.IMAGES, new titech.db.QueryScheduler.Query() {
+			public void run(titech.util.Cancellable ticket) {
+				iretrieval.run(histogram, ticket);
+			}
+		});
 	}
 	
 	/** Sets a foreground image */
@@ -223,6 +237,7 @@ public class PaintCanvas extends Canvas implements MouseListener, MouseMotionLis
 		
 		layer.drawImage(img,0,0,this);
 		layer.dispose();
+		mSketch = null;
 		
 		repaint();
 	}
@@ -258,6 +273,46 @@ public class PaintCanvas extends Canvas implements MouseListener, MouseMotionLis
 		}
     }
 	
+	/** The area drawn by drawOn(), or null */
+	Rectangle drawnArea() {
+		Rectangle area = null;
+		if (mBrush!=null) {
+			area = new Rectangle(startP.x, startP.y, mBrush.getWidth(), mBrush.getHeight());
+		} else if (startP.equals(endP)) {
+			if (toolMode==DOTS || toolMode==SQUARE)
+				area = new Rectangle(startP.x-(strokeSize>>1), startP.y-(strokeSize>>1), strokeSize, strokeSize);
+		} else {
+			area = new Rectangle(startP);
+			area.add(endP);
+			// round caps
+			area.grow(strokeSize>>1, strokeSize>>1);
+		}
+		// rounding of the borders
+		if (area != null) area.grow(2, 2);
+		return area;
+	}
+	
+	/**
+	 * Updates the sketch and objectImage with the area painted since the last
+	 * time. Only the pixels of that area are read again.
+	 */
+	void updateSketch() {
+		if (mSketch == null) {
+			mSketch = Utilities.resize(mImage, SKETCH_SIZE);
+			objectImage.setRegions(mSketch);
+		} else if (mDirty != null) {
+			Rectangle changed = Utilities.resizeArea(mImage, SKETCH_SIZE, mDirty);
+			int[] before = null;
+			if (!changed.isEmpty()) {
+				before = mSketch.getRGB(changed.x, changed.y, changed.width, changed.height,
+										null, 0, changed.width);
+				Utilities.resize(mImage, mSketch, SKETCH_SIZE, changed);
+			}
+			objectImage.updateRegions(mSketch, changed, before);
+		}
+		mDirty = null;
+	}
+	
 
     public void paint(Graphics g) {
 		g.drawImage(mImage,0,0,this);
@@ -316,6 +371,11 @@ public class PaintCanvas extends Canvas implements MouseListener, MouseMotionLis
 		
 		drawOn(gImage);
 		gImage.dispose();
+		Rectangle area = drawnArea();
+		if (area != null) {
+			if (mDirty == null) mDirty = area;
+			else mDirty.add(area);
+		}
 		
 		// paint of the object image too
 		if (!rubber) {
@@ -336,34 +396,25 @@ public class PaintCanvas extends Canvas implements MouseListener, MouseMotionLis
     public void mouseReleased(MouseEvent e) {
 		dragging = false;
 				
-		// add object
-		titech.image.dsp.Region region = objectImage.addRegion(mObject, fgColor);
+		// add object, only the painted area has to be read
+		Rectangle painted = mDirty;
+		titech.image.dsp.Region region = objectImage.addRegion(mObject, fgColor, painted);
 		//System.out.println(region);
-		// start new retrieval thread
+		// start new retrieval, cancelling the previous one
 		if (retrieval != null) {
 			titech.db.Retrieval ret = new titech.db.Retrieval(region);
 			ret.cloneFrom(retrieval);
-			Thread rt = new Thread(ret);
-			rt.start();
+			scheduler.submit(titech.db.QueryScheduler.REGIONS, ret);
 		}
 		
-		objectImage.setRegions(Utilities.resize(mImage, 100));
-		try {			
-			if (iretrievalThread!=null) 
-				iretrievalThread.join(); // wait
-		} catch (Exception exc) {
-			System.err.println("PaintCanvas: "+exc);
-		}
-		if (iretrieval != null) {
-			iretrieval.setQuery(objectImage.getHistogram());
-			iretrievalThread = new Thread(iretrieval);
-			iretrievalThread.start();
-		}
+		updateSketch();
+		retrieveImages();
 		
 		// clear image
 		Graphics gi = mObject.getGraphics();
 		gi.setColor(Color.BLACK);
-		gi.fillRect(0,0,width,height);
+		if (painted != null) gi.fillRect(painted.x, painted.y, painted.width, painted.height);
+		else gi.fillRect(0,0,width,height);
 		gi.dispose();
     }
 
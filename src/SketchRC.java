@@ -16,6 +16,7 @@ import titech.wt.*;
 import titech.db.ImageRetrieval;
 import titech.db.Retrieval;
 import titech.db.Indexer;
+import titech.db.IndexWatcher;
 import titech.file.FileUtils;
 
 
@@ -192,6 +193,8 @@ public class SketchRC extends JFrame implements ChangeListener, ActionListener,
 	NaviBar naviBar;
 	Retrieval retrieval;
 	ImageRetrieval imageRetrieval;
+	/** Keeps the indexed directories up to date */
+	IndexWatcher watcher;
 	ToolBar toolBar;
 	ScrollableJPanel sjpanel, isjpanel;
 	JFrame retrievalWindow;
@@ -911,6 +914,19 @@ public class SketchRC extends JFrame implements ChangeListener, ActionListener,
 		paintCanvas.setRetrieval(ret);
 	}
 	
+	/** Updates the DB when the images of the directory change */
+	public void watch(String path) {
+		try {
+			if (watcher == null) {
+				watcher = new IndexWatcher(retrieval, imageRetrieval);
+				watcher.start();
+			}
+			watcher.watch(path);
+		} catch (IOException e) {
+			System.err.println("SketchRC: "+e);
+		}
+	}
+	
 	public void setImageRetrieval(ImageRetrieval iret) {
 		imageRetrieval = iret;
 		while (paintCanvas == null) {
@@ -1138,6 +1154,7 @@ public class SketchRC extends JFrame implements ChangeListener, ActionListener,
 				String path = (fc.getSelectedFile()).getAbsolutePath();
 				
 				task = (Task)(new Indexer(path, retrieval, imageRetrieval));
+				watch(path);
 				
 				progressMonitor = new ProgressMonitor(retrievalWindow,
 													  "Indexing directory "+path,
@@ -1465,6 +1482,7 @@ public class SketchRC extends JFrame implements ChangeListener, ActionListener,
 				}
 				window.setRetrieval(ret);
 				window.setImageRetrieval(iret);
+				window.watch(s[0]);
 				
 				// check for the preview directory. If it doesn't exist, create it
 				File fp = new File(s[0]+File.separator+Retrieval.PREVIEWDIR);
@@ -207,6 +207,45 @@ public class Utilities {
         return result;
     }
 	
+	/**
+	 * The part of resize(image, newSize) that depends on the given area of
+	 * image, so it can be drawn again with resize(image, result, newSize, clip)
+	 * when only that area has been modified.
+	 */
+	public static Rectangle resizeArea(BufferedImage image, int newSize, Rectangle area) {
+		double w = image.getWidth(), h=image.getHeight(), scale = 1;
+		int newWidth = newSize, newHeight = newSize;
+		if (w<h) {
+			scale = newWidth / w;
+			newHeight = (int)(h*scale);
+		} else {
+			scale = newHeight / h;
+			newWidth = (int)(w*scale);			
+		}
+		// a pixel more, for the interpolation
+		int margin = (int)Math.ceil(scale)+1;
+		int x0 = Math.max(0, (int)Math.floor(area.x*scale)-margin);
+		int y0 = Math.max(0, (int)Math.floor(area.y*scale)-margin);
+		int x1 = Math.min(newWidth, (int)Math.ceil((area.x+area.width)*scale)+margin);
+		int y1 = Math.min(newHeight, (int)Math.ceil((area.y+area.height)*scale)+margin);
+		return new Rectangle(x0, y0, Math.max(0, x1-x0), Math.max(0, y1-y0));
+	}
+	
+	/** Draws the clip area of result = resize(image, newSize) */
+	public static void resize(BufferedImage image, BufferedImage result, int newSize, Rectangle clip) {
+		double w = image.getWidth(), h=image.getHeight(), scale = 1;
+		if (w<h) {
+			scale = newSize / w;
+		} else {
+			scale = newSize / h;
+		}
+        Graphics2D g = result.createGraphics();
+		g.setClip(clip);
+        AffineTransform xform = AffineTransform.getScaleInstance(scale, scale);
+        g.drawRenderedImage(image, xform);
+        g.dispose();
+	}
+	
 	public static BufferedImage resize(BufferedImage image, int newWidth, int newHeight) {
         BufferedImage result = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = result.createGraphics();
@@ -9,6 +9,12 @@ package titech.cluster;
 public class KMeans {
 	/** Maximum number of iterations */
 	public static final int MAXITERS = 100;
+	/** Standard iterations, computing all the distances */
+	public static final int LLOYD = 0;
+	/** Same result, skipping the points that can't change, see clusterHamerly() */
+	public static final int HAMERLY = 1;
+	/** Method used when none is given */
+	public static int defaultMethod = HAMERLY;
 	
 	/** the number of clusters */
 	int K; 
@@ -17,6 +23,8 @@ public class KMeans {
 	int[] cAssignment;
 	/** the cluster centers */
 	double[][] mu;
+	/** how many times each vector is repeated, or null for once */
+	int[] weight;
 	
 	public int[] getAssignments() {
 		return cAssignment;
@@ -34,9 +42,33 @@ public class KMeans {
 	 *    of each vector, and n is the total number of samples
 	 */
 	public KMeans(int k, double[][] data, int[] initialAssignment) {
+		this(k, flatten(data), data.length, data[0].length, initialAssignment);
+	}
+	/**
+	 * @param k number of clusters
+	 * @param data the data in a flat array, n vectors of dimension d one after
+	 *    the other. It may be longer than n*d, so the caller can reuse it.
+	 * @param initialAssignment the initial clusters (1..k), or null. It is
+	 *    overwritten with the result, see getAssignments().
+	 */
+	public KMeans(int k, double[] data, int n, int d, int[] initialAssignment) {
+		this(k, data, n, d, initialAssignment, defaultMethod);
+	}
+	/**
+	 * @param method LLOYD or HAMERLY, both give the same clusters
+	 */
+	public KMeans(int k, double[] data, int n, int d, int[] initialAssignment, int method) {
+		this(k, data, null, n, d, initialAssignment, method);
+	}
+	/**
+	 * Clusters n distinct vectors, where vector j stands for weights[j]
+	 * equal samples. It gives the clusters of the samples, in much less
+	 * time when there are many repeated ones.
+	 */
+	public KMeans(int k, double[] data, int[] weights, int n, int d, int[] initialAssignment,
+				  int method) {
 		this.K = k;
-		int n = data.length;
-		int d = data[0].length;
+		this.weight = weights;
 		mu = new double[k][d];
 		if (initialAssignment == null) {
 			cAssignment = new int[n];
@@ -44,19 +76,25 @@ public class KMeans {
 		} else {
 			cAssignment = initialAssignment;
 		}
-		cluster(k, data);
+		if (method == HAMERLY) clusterHamerly(k, data, n, d);
+		else cluster(k, data, n, d);
 	} 
 	
+	static double[] flatten(double[][] data) {
+		int n = data.length;
+		int d = data[0].length;
+		double[] flat = new double[n*d];
+		for (int j=0;j<n;j++) System.arraycopy(data[j], 0, flat, j*d, d);
+		return flat;
+	}
+	
 	void randomInit() {
 		for (int i=0;i<cAssignment.length;i++) {
 			cAssignment[i] = (int)Math.floor(Math.random()*K)+1;
 		}
 	}
 	
-	void cluster(int k, double[][] data) {
-		int n=data.length;
-		int d=data[0].length;
-		
+	void cluster(int k, double[] data, int n, int d) {
 		int e=1;
 		int iter=0;
 		int[] count = new int[k];
@@ -64,21 +102,7 @@ public class KMeans {
 		
 		while (e>0 && iter<MAXITERS) {
 			// compute the means and the distances
-			for (int i=0;i<k;i++) {
-				count[i]=0;
-				for (int v=0;v<d;v++) mu[i][v]=0.;
-			}
-			for (int j=0;j<n;j++) {
-				int member = cAssignment[j];
-				if (member>0) {
-					count[member-1]++;
-					for (int v=0;v<d;v++) mu[member-1][v] += data[j][v];
-				}
-			}
-			for (int i=0;i<k;i++) 
-				if (count[i]>0)
-					for (int v=0;v<d;v++) mu[i][v]/=(double)count[i];
-				// else =0 
+			means(k, data, n, d, count);
 			
 			//System.out.println(titech.image.math.AMath.showMatrix(mu));
 			// dist(1:n,i)=sum((X-ones(n, 1)*mu(i,:)).^2,2);
@@ -87,20 +111,7 @@ public class KMeans {
 			// e=n-sum(C==I); C=I;
 			e=0;
 			for (int j=0;j<n;j++) {
-				for (int i=0;i<k;i++) {
-					dist[i]=0.;
-					for (int v=0;v<d;v++)
-						dist[i]+=(data[j][v]-mu[i][v])*(data[j][v]-mu[i][v]);
-				}
-				// min
-				int clase = 1;
-				double min=dist[clase-1];
-				for (int i=1;i<k;i++) {
-					if (dist[i]<min) {
-						clase = i+1;
-						min = dist[i];
-					}
-				}
+				int clase = closest(k, data, j*d, d, dist);
 				if (cAssignment[j]!=clase) e++;
 				cAssignment[j]=clase;
 			}
@@ -111,6 +122,152 @@ public class KMeans {
 		//System.out.println("Iterated "+iter+" times.");
 	} // end cluster
 	
+	/** Computes mu from the current assignments. Empty clusters get 0. */
+	void means(int k, double[] data, int n, int d, int[] count) {
+		double[] sum = new double[k*d];
+		for (int i=0;i<k;i++) count[i]=0;
+		for (int j=0;j<n;j++) {
+			int member = cAssignment[j];
+			if (member>0) {
+				int w = (weight==null) ? 1 : weight[j];
+				count[member-1] += w;
+				int m = (member-1)*d, o = j*d;
+				for (int v=0;v<d;v++) sum[m+v] += w*data[o+v];
+			}
+		}
+		for (int i=0;i<k;i++) {
+			for (int v=0;v<d;v++)
+				mu[i][v] = (count[i]>0) ? sum[i*d+v]/(double)count[i] : 0.;
+		}
+	}
+	
+	/**
+	 * The cluster (1..k) with the closest mean to the vector at offset o,
+	 * the first one in case of a tie. Leaves the squared distances in dist.
+	 */
+	int closest(int k, double[] data, int o, int d, double[] dist) {
+		for (int i=0;i<k;i++) {
+			dist[i]=0.;
+			for (int v=0;v<d;v++)
+				dist[i]+=(data[o+v]-mu[i][v])*(data[o+v]-mu[i][v]);
+		}
+		// min
+		int clase = 1;
+		double min=dist[clase-1];
+		for (int i=1;i<k;i++) {
+			if (dist[i]<min) {
+				clase = i+1;
+				min = dist[i];
+			}
+		}
+		return clase;
+	}
+	
+	/**
+	 * The same iterations as cluster(), but it skips the points that can't
+	 * change of cluster (Hamerly, "Making k-means even faster", 2010).
+	 * Every point keeps an upper bound of the distance to its mean and a
+	 * lower bound of the distance to the other means. When the means move,
+	 * the bounds are moved as much as they did. If the upper bound is below
+	 * the lower bound, or below half the distance from its mean to the
+	 * closest other mean, the point stays where it is. Otherwise its
+	 * distances are computed as in cluster(), so the assignments are the
+	 * same at every iteration, ties included.
+	 */
+	void clusterHamerly(int k, double[] data, int n, int d) {
+		int e=1;
+		int iter=0;
+		int[] count = new int[k];
+		double[] dist = new double[k];
+		double[] upper = new double[n];
+		double[] lower = new double[n];
+		double[][] previous = new double[k][d];
+		double[] moved = new double[k];
+		double[] half = new double[k];
+		
+		// bounds are only trusted by more than the rounding errors
+		double scale = 0.;
+		for (int j=0;j<n*d;j++) scale = Math.max(scale, Math.abs(data[j]));
+		double margin = 1e-9*(1.+scale);
+		
+		while (e>0 && iter<MAXITERS) {
+			for (int i=0;i<k;i++)
+				for (int v=0;v<d;v++) previous[i][v]=mu[i][v];
+			means(k, data, n, d, count);
+			
+			e=0;
+			if (iter==0) {
+				for (int j=0;j<n;j++) {
+					int clase = closest(k, data, j*d, d, dist);
+					bounds(j, clase, k, dist, upper, lower);
+					if (cAssignment[j]!=clase) e++;
+					cAssignment[j]=clase;
+				}
+				iter++;
+				continue;
+			}
+			
+			// how much the means moved, and the two largest moves
+			int farthest = 0;
+			double max1 = 0., max2 = 0.;
+			for (int i=0;i<k;i++) {
+				moved[i] = Math.sqrt(squaredDistance(previous[i], mu[i], d));
+				if (moved[i]>max1) {
+					max2 = max1;
+					max1 = moved[i];
+					farthest = i;
+				} else if (moved[i]>max2) {
+					max2 = moved[i];
+				}
+			}
+			// half the distance to the closest other mean
+			for (int i=0;i<k;i++) {
+				double min = Double.POSITIVE_INFINITY;
+				for (int i2=0;i2<k;i2++) {
+					if (i2!=i) min = Math.min(min, squaredDistance(mu[i], mu[i2], d));
+				}
+				half[i] = 0.5*Math.sqrt(min);
+			}
+			
+			for (int j=0;j<n;j++) {
+				int a = cAssignment[j]-1;
+				upper[j] += moved[a]+margin;
+				lower[j] -= ((a==farthest)?max2:max1)+margin;
+				double bound = Math.max(half[a], lower[j])-margin;
+				if (upper[j] < bound) continue;
+				// tighten the upper bound
+				int o = j*d;
+				double ua = 0.;
+				for (int v=0;v<d;v++) ua+=(data[o+v]-mu[a][v])*(data[o+v]-mu[a][v]);
+				upper[j] = Math.sqrt(ua)+margin;
+				if (upper[j] < bound) continue;
+				
+				int clase = closest(k, data, o, d, dist);
+				bounds(j, clase, k, dist, upper, lower);
+				if (cAssignment[j]!=clase) e++;
+				cAssignment[j]=clase;
+			}
+			
+			iter++;
+		} // end while
+	} // end clusterHamerly
+	
+	/** Sets the bounds of point j from the squared distances to all means */
+	static void bounds(int j, int clase, int k, double[] dist, double[] upper, double[] lower) {
+		double second = Double.POSITIVE_INFINITY;
+		for (int i=0;i<k;i++) {
+			if (i!=clase-1) second = Math.min(second, dist[i]);
+		}
+		upper[j] = Math.sqrt(dist[clase-1]);
+		lower[j] = Math.sqrt(second);
+	}
+	
+	static double squaredDistance(double[] x, double[] y, int d) {
+		double sum = 0.;
+		for (int v=0;v<d;v++) sum+=(x[v]-y[v])*(x[v]-y[v]);
+		return sum;
+	}
+	
 	public static void main(String s[]) {
 		// small test
 		double[][] data=new double[7][2];
@@ -0,0 +1,258 @@
+//
+//  BinaryIndex.java
+//  sketchRC
+//
+package titech.db;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import titech.file.*;
+import titech.image.math.*;
+import titech.image.dsp.*;
+
+/**
+ * Binary version of the Retrieval.INDEX_NAME and ImageRetrieval.INDEX_NAME
+ * indices of a directory, so they can be memory-mapped and read without
+ * parsing any text: the regions are copied from the mapping straight into
+ * the RegionStore (see getDescriptor()) and the histograms with a bulk copy
+ * of doubles. The Indexer copies the records of the unchanged images to the
+ * new index as they are (see getRecord()).
+ * <p>
+ * The file starts with a header
+ * <pre>
+ *   int magic, int version, int nimages, int histogramSize, int nfeatures,
+ *   int reserved, long tableOffset
+ * </pre>
+ * followed by a record per image, in the order of the Manifest:
+ * <pre>
+ *   double[histogramSize] histogram (see ObjectImage.getHistogram())
+ *   descriptor (see ObjectImage.putDescriptor())
+ * </pre>
+ * and, at tableOffset, a table with the offset (long) of every record.
+ * nimages is -1 until the table has been written, so an interrupted index
+ * is never used. Everything is big-endian. The values are stored as doubles,
+ * so they are exactly the ones of the text indices.
+ */
+public class BinaryIndex {
+	public static final String INDEX_NAME = ".index";
+	public static final int MAGIC = 0x534b4958; // "SKIX"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 32;
+	public static final int HISTOGRAM_SIZE = ObjectImage.RHISTO_SIZE+ObjectImage.CHISTO_SIZE;
+
+	ByteBuffer buffer;
+	int nimages;
+	int tableOffset;
+
+	BinaryIndex(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Maps the binary index of a directory. Returns null if there is none,
+	 * or it is incomplete or of another version.
+	 */
+	public static BinaryIndex open(String path) {
+		File f = new File(path+File.separator+INDEX_NAME);
+		if (!f.exists()) return null;
+		try {
+			FileInputStream in = new FileInputStream(f);
+			ByteBuffer buffer;
+			try {
+				FileChannel channel = in.getChannel();
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			} finally {
+				in.close(); // the mapping stays valid
+			}
+			BinaryIndex index = new BinaryIndex(buffer);
+			if (buffer.capacity() < HEADER_SIZE ||
+				buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ||
+				buffer.getInt(12) != HISTOGRAM_SIZE ||
+				buffer.getInt(16) != ObjectImage.NFEATURES) return null;
+			index.nimages = buffer.getInt(8);
+			long table = buffer.getLong(24);
+			if (index.nimages < 0 || table+8L*index.nimages > buffer.capacity()) return null;
+			index.tableOffset = (int)table;
+			return index;
+		} catch (IOException e) {
+			System.err.println("BinaryIndex: "+f+": "+e);
+		}
+		return null;
+	}
+
+	public int size() {
+		return nimages;
+	}
+
+	/** A view of the buffer at the record of image i */
+	ByteBuffer record(int i) {
+		ByteBuffer buf = buffer.duplicate();
+		buf.position(offset(i));
+		return buf;
+	}
+
+	int offset(int i) {
+		return (int)buffer.getLong(tableOffset+8*i);
+	}
+
+	/** The record of image i as it is in the file, see encode() */
+	public byte[] getRecord(int i) {
+		int end = (i+1 < nimages) ? offset(i+1) : tableOffset;
+		byte[] record = new byte[end-offset(i)];
+		record(i).get(record);
+		return record;
+	}
+
+	/**
+	 * A view of the buffer at the descriptor of image i, see
+	 * ObjectImage.putDescriptor() and RegionStore.put(String, ByteBuffer).
+	 */
+	public ByteBuffer getDescriptor(int i) {
+		ByteBuffer buf = record(i);
+		buf.position(buf.position() + 8*HISTOGRAM_SIZE);
+		return buf;
+	}
+
+	public double[] getHistogram(int i) {
+		double[] histogram = new double[HISTOGRAM_SIZE];
+		record(i).asDoubleBuffer().get(histogram);
+		return histogram;
+	}
+
+	public ObjectImage getObjectImage(int i) {
+		return new ObjectImage(getDescriptor(i));
+	}
+
+	/** Encodes the record of an image */
+	public static byte[] encode(ObjectImage objectImage, double[] histogram) {
+		ByteBuffer buf = ByteBuffer.allocate(8*HISTOGRAM_SIZE + objectImage.descriptorSize());
+		for (int k=0;k<HISTOGRAM_SIZE;k++) buf.putDouble(histogram[k]);
+		objectImage.putDescriptor(buf);
+		return buf.array();
+	}
+
+	/**
+	 * Writes a binary index, record by record. The index is only valid
+	 * after close().
+	 */
+	public static class Writer {
+		File file;
+		DataOutputStream out;
+		long offset;
+		long[] offsets;
+		int nimages;
+
+		public Writer(File file) throws IOException {
+			this.file = file;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(-1); // incomplete
+			out.writeInt(HISTOGRAM_SIZE);
+			out.writeInt(ObjectImage.NFEATURES);
+			out.writeInt(0);
+			out.writeLong(0);
+			offset = HEADER_SIZE;
+			offsets = new long[64];
+			nimages = 0;
+		}
+
+		/** Appends a record, see encode() */
+		public void add(byte[] record) throws IOException {
+			if (nimages == offsets.length) {
+				long[] o = new long[2*offsets.length];
+				System.arraycopy(offsets, 0, o, 0, nimages);
+				offsets = o;
+			}
+			offsets[nimages++] = offset;
+			out.write(record);
+			offset += record.length;
+		}
+
+		/** Writes the offset table and marks the index as complete */
+		public void close() throws IOException {
+			for (int i=0;i<nimages;i++) out.writeLong(offsets[i]);
+			out.close();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(8);
+				raf.writeInt(nimages);
+				raf.seek(24);
+				raf.writeLong(offset);
+			} finally {
+				raf.close();
+			}
+		}
+
+		/** Closes it leaving it incomplete */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				System.err.println("BinaryIndex: "+e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the binary index of a directory from its text indices.
+	 * Returns false if there are no text indices.
+	 */
+	public static boolean convert(String path, FileFilter filter) throws IOException {
+		File indexFile = new File(path+File.separator+Retrieval.INDEX_NAME);
+		File histogramFile = new File(path+File.separator+ImageRetrieval.INDEX_NAME);
+		if (!indexFile.exists() || !histogramFile.exists()) return false;
+
+		Manifest manifest = Manifest.forIndex(path, filter);
+		if (manifest == null) {
+			throw new IOException("BinaryIndex: the index of "+path+" is incomplete");
+		}
+		String[] descriptors = manifest.readLines(indexFile, false);
+		String[] histograms = manifest.readLines(histogramFile, true);
+		if (descriptors == null || histograms == null) {
+			throw new IOException("BinaryIndex: the index of "+path+" doesn't match its manifest");
+		}
+		Writer writer = new Writer(new File(path+File.separator+INDEX_NAME));
+		try {
+			for (int i=0;i<descriptors.length;i++) {
+				writer.add(encode(new ObjectImage(descriptors[i]), AMath.vectorDouble(histograms[i])));
+			}
+			writer.close();
+		} catch (IOException e) {
+			writer.abort();
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Converts the text indices of the given directories, recursively.
+	 * Usage: BinaryIndex dir...
+	 */
+	public static void main(String[] args) {
+		ImageFileFilter filter = new ImageFileFilter();
+		filter.addExtension("jpg");
+		filter.addExtension("png");
+		filter.addExtension("jpeg");
+		filter.addExtension("bmp");
+		filter.addExtension("tiff");
+
+		for (int a=0;a<args.length;a++) {
+			File[] dirs = FileUtils.lsDirsR(args[a]);
+			File[] all = new File[dirs.length+1];
+			all[0] = new File(args[a]);
+			System.arraycopy(dirs, 0, all, 1, dirs.length);
+			for (int i=0;i<all.length;i++) {
+				try {
+					if (convert(all[i].getAbsolutePath(), filter)) {
+						System.out.println(all[i]+File.separator+INDEX_NAME);
+					}
+				} catch (IOException e) {
+					System.err.println("BinaryIndex: "+e);
+				}
+			}
+		}
+	}
+}
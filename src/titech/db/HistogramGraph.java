@@ -0,0 +1,462 @@
+//
+//  HistogramGraph.java
+//  sketchRC
+//
+package titech.db;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import titech.file.*;
+import titech.util.*;
+import titech.image.math.*;
+
+/**
+ * Proximity graph over the histograms of the images of a directory, to find
+ * the closest ones to a query without computing the distance to all of them
+ * (Malkov and Yashunin, "Hierarchical Navigable Small World graphs").
+ * <p>
+ * Every image is a node linked to some of its closest images. A few random
+ * nodes are also in upper levels, with links to farther images. A query
+ * goes down the levels greedily, and at the lowest one it explores the
+ * graph keeping the best ef images found so far. A larger ef finds more of
+ * the true closest images, and it takes longer. The distance is the one of
+ * ImageRetrieval, with the weights the graph was built with.
+ * <p>
+ * Images can be added after it is built, see add(). A search gets the ids
+ * of the nodes from the caller, which marks the removed images with -1:
+ * they are still followed to reach the others, but never returned. The
+ * nodes are only added under the write lock, so the searches can run at the
+ * same time as the updates.
+ * <p>
+ * The graph is saved in the directory as INDEX_NAME: a header
+ * <pre>
+ *   int magic, int version, int nimages, int M, int maxLevel, int entry,
+ *   double[4] weights, long checksum
+ * </pre>
+ * followed by, for every image, its level and the links of every level (a
+ * count and the ids). The checksum of the histograms tells if the graph
+ * still belongs to the index. Everything is big-endian.
+ */
+public class HistogramGraph {
+	public static final String INDEX_NAME = ".hnsw";
+	public static final int MAGIC = 0x534b4847; // "SKHG"
+	public static final int VERSION = 1;
+	/** Links of a node in the upper levels, twice as many in level 0 */
+	public static final int M = 16;
+	/** Candidates kept while inserting a node */
+	public static final int EF_CONSTRUCTION = 100;
+	/** Highest level read from a file, far above the ones of any real graph */
+	static final int MAX_LEVEL = 64;
+
+	double[][] data;
+	double[][] univ;
+	/** posW, volW, oriW, colW of ImageRetrieval */
+	double[] weights;
+	/** Number of nodes, the arrays can be longer */
+	int n;
+	int[] levels;
+	/** links[node][level]: number of links, followed by the linked nodes */
+	int[][][] links;
+	int entry;
+	int maxLevel;
+	/** Levels of the added nodes */
+	Random random;
+	/** Read by the searches, written by add() */
+	ReentrantReadWriteLock lock;
+
+	/** Marks of the visited nodes, of the searches of a thread */
+	static final ThreadLocal<Visits> VISITS = new ThreadLocal<Visits>() {
+		protected Visits initialValue() {
+			return new Visits();
+		}
+	};
+
+	HistogramGraph(double[][] data, double[][] univ, double[] weights) {
+		this.data = data;
+		this.univ = univ;
+		this.weights = weights.clone();
+		n = data.length;
+		levels = new int[n];
+		links = new int[n][][];
+		entry = -1;
+		maxLevel = -1;
+		// always the same graph for the same histograms
+		random = new Random(1);
+		lock = new ReentrantReadWriteLock();
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * Builds the graph of the histograms (and universal histograms) of a
+	 * directory.
+	 */
+	public static HistogramGraph build(double[][] data, double[][] univ, double[] weights) {
+		HistogramGraph g = new HistogramGraph(data, univ, weights);
+		for (int i=0;i<g.n;i++) g.insert(i, g.level());
+		return g;
+	}
+
+	/**
+	 * Adds the histogram (and universal histogram) of another image, and
+	 * returns its node.
+	 */
+	public int add(double[] h, double[] u) {
+		lock.writeLock().lock();
+		try {
+			if (n == data.length) {
+				int capacity = Math.max(16, 2*n);
+				data = Arrays.copyOf(data, capacity);
+				univ = Arrays.copyOf(univ, capacity);
+				levels = Arrays.copyOf(levels, capacity);
+				links = Arrays.copyOf(links, capacity);
+			}
+			data[n] = h;
+			univ[n] = u;
+			insert(n, level());
+			return n++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** A random level, every one with 1/M of the nodes of the one below */
+	int level() {
+		return (int)(-Math.log(1.-random.nextDouble())/Math.log(M));
+	}
+
+	/** The distance of ImageRetrieval, see ImageRetrieval.scan() */
+	static double distance(double[] w, double[] q, double[] uq, double[] x, double[] ux) {
+		double pdist = AMath.distance(q,x,0,8);
+		double vdist = AMath.distance(q,x,9,18);
+		double sdist = AMath.distance(q,x,19,21);
+		double cdist = AMath.distance(q,x,22,q.length-1);
+		double univdist = AMath.distance(uq,ux);
+		return w[0]*pdist+w[1]*vdist+w[2]*sdist+w[3]*cdist*univdist;
+	}
+
+	double distance(int a, int b) {
+		return distance(weights, data[a], univ[a], data[b], univ[b]);
+	}
+
+	static int maxLinks(int level) {
+		return (level == 0) ? 2*M : M;
+	}
+
+	void insert(int node, int level) {
+		levels[node] = level;
+		links[node] = new int[level+1][];
+		for (int l=0;l<=level;l++) links[node][l] = new int[1+maxLinks(l)];
+		if (entry < 0) {
+			entry = node;
+			maxLevel = level;
+			return;
+		}
+		double[] q = data[node], uq = univ[node];
+		int ep = entry;
+		for (int l=maxLevel;l>level;l--) ep = greedy(weights, q, uq, ep, l);
+		for (int l=Math.min(level, maxLevel);l>=0;l--) {
+			TopK found = searchLayer(weights, q, uq, ep, EF_CONSTRUCTION, l, null);
+			found.sort();
+			int[] selected = select(node, found, maxLinks(l));
+			int[] list = links[node][l];
+			for (int i=0;i<selected.length;i++) {
+				list[++list[0]] = selected[i];
+				link(selected[i], node, l);
+			}
+			ep = found.id(0);
+		}
+		if (level > maxLevel) {
+			maxLevel = level;
+			entry = node;
+		}
+	}
+
+	/**
+	 * Chooses the links of a node among the candidates, sorted by distance:
+	 * a candidate is skipped if it is closer to one already chosen than to
+	 * the node, so the links go in different directions. The skipped ones
+	 * fill the links that are left.
+	 */
+	int[] select(int node, TopK candidates, int max) {
+		int[] selected = new int[Math.min(max, candidates.size())];
+		int nselected = 0;
+		int[] skipped = new int[candidates.size()];
+		int nskipped = 0;
+		for (int i=0;i<candidates.size() && nselected<selected.length;i++) {
+			int c = candidates.id(i);
+			boolean good = true;
+			for (int j=0;j<nselected && good;j++) {
+				if (distance(c, selected[j]) < candidates.value(i)) good = false;
+			}
+			if (good) selected[nselected++] = c;
+			else skipped[nskipped++] = c;
+		}
+		for (int i=0;i<nskipped && nselected<selected.length;i++) {
+			selected[nselected++] = skipped[i];
+		}
+		return selected;
+	}
+
+	/** Adds a link from node to other, choosing again if there are too many */
+	void link(int node, int other, int level) {
+		int[] list = links[node][level];
+		if (list[0] < list.length-1) {
+			list[++list[0]] = other;
+			return;
+		}
+		TopK candidates = new TopK(list[0]+1);
+		for (int i=1;i<=list[0];i++) candidates.offer(distance(node, list[i]), list[i]);
+		candidates.offer(distance(node, other), other);
+		candidates.sort();
+		int[] selected = select(node, candidates, list.length-1);
+		list[0] = selected.length;
+		System.arraycopy(selected, 0, list, 1, selected.length);
+	}
+
+	/** Goes to the closest neighbour while it gets closer to the query */
+	int greedy(double[] w, double[] q, double[] uq, int ep, int level) {
+		double d = distance(w, q, uq, data[ep], univ[ep]);
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			int[] list = links[ep][level];
+			for (int i=1;i<=list[0];i++) {
+				int e = list[i];
+				double de = distance(w, q, uq, data[e], univ[e]);
+				if (de < d) {
+					d = de;
+					ep = e;
+					changed = true;
+				}
+			}
+		}
+		return ep;
+	}
+
+	/**
+	 * The ef closest nodes to the query found by exploring a level from ep.
+	 * Only the nodes with an id are found, see search(). ids is null while
+	 * building, then all of them are.
+	 */
+	TopK searchLayer(double[] w, double[] q, double[] uq, int ep, int ef, int level, int[] ids) {
+		TopK found = new TopK(ef);
+		Candidates candidates = new Candidates();
+		Visits visits = VISITS.get();
+		visits.start(n);
+		double d = distance(w, q, uq, data[ep], univ[ep]);
+		visits.mark(ep);
+		if (live(ep, ids)) found.offer(d, ep);
+		candidates.push(d, ep);
+		while (candidates.size > 0) {
+			double dc = candidates.values[0];
+			int c = candidates.pop();
+			if (dc > found.bound()) break;
+			int[] list = links[c][level];
+			for (int i=1;i<=list[0];i++) {
+				int e = list[i];
+				if (!visits.mark(e)) continue;
+				double de = distance(w, q, uq, data[e], univ[e]);
+				if (de < found.bound()) {
+					if (live(e, ids)) found.offer(de, e);
+					candidates.push(de, e);
+				}
+			}
+		}
+		return found;
+	}
+
+	static boolean live(int node, int[] ids) {
+		return ids == null || (node < ids.length && ids[node] >= 0);
+	}
+
+	/**
+	 * Offers to top the closest images to the query that are under the
+	 * threshold. ids[node] is the id of the image of every node, or -1 if it
+	 * has been removed; the nodes added after ids was taken are skipped too.
+	 * At least top.capacity() images are explored.
+	 */
+	public void search(double[] w, double[] q, double[] uq, int ef, int[] ids,
+					   double threshold, TopK top) {
+		lock.readLock().lock();
+		try {
+			if (entry < 0) return;
+			int ep = entry;
+			for (int l=maxLevel;l>0;l--) ep = greedy(w, q, uq, ep, l);
+			TopK found = searchLayer(w, q, uq, ep, Math.max(ef, top.capacity()), 0, ids);
+			for (int i=0;i<found.size();i++) {
+				if (found.value(i) < threshold) top.offer(found.value(i), ids[found.id(i)]);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks of the visited nodes: a node is visited in the current search if
+	 * its mark is the number of the search, so nothing is cleared between
+	 * searches.
+	 */
+	static class Visits {
+		int[] marks = new int[0];
+		int visit = 0;
+
+		/** Starts the search of a graph of n nodes */
+		void start(int n) {
+			if (marks.length < n || visit == Integer.MAX_VALUE) {
+				marks = new int[Math.max(n, marks.length)];
+				visit = 0;
+			}
+			visit++;
+		}
+
+		/** Returns false if the node already was visited */
+		boolean mark(int node) {
+			if (marks[node] == visit) return false;
+			marks[node] = visit;
+			return true;
+		}
+	}
+
+	/** Min-heap of the nodes to explore */
+	static class Candidates {
+		double[] values = new double[64];
+		int[] ids = new int[64];
+		int size = 0;
+
+		void push(double value, int id) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, 2*size);
+				ids = Arrays.copyOf(ids, 2*size);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i-1)/2;
+				if (values[parent] <= value) break;
+				values[i] = values[parent]; ids[i] = ids[parent];
+				i = parent;
+			}
+			values[i] = value; ids[i] = id;
+		}
+
+		/** Removes the closest one and returns its id */
+		int pop() {
+			int id = ids[0];
+			double value = values[--size];
+			int last = ids[size];
+			int i = 0;
+			while (true) {
+				int child = 2*i+1;
+				if (child >= size) break;
+				if (child+1 < size && values[child+1] < values[child]) child++;
+				if (values[child] >= value) break;
+				values[i] = values[child]; ids[i] = ids[child];
+				i = child;
+			}
+			values[i] = value; ids[i] = last;
+			return id;
+		}
+	}
+
+	static long checksum(double[][] data) {
+		long sum = data.length;
+		for (int i=0;i<data.length;i++) sum = 31*sum + Arrays.hashCode(data[i]);
+		return sum;
+	}
+
+	/** Saves it in the directory, through a temporary file */
+	public void write(String path) throws IOException {
+		File f = new File(path+File.separator+INDEX_NAME);
+		File tmp = new File(f.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(n);
+			out.writeInt(M);
+			out.writeInt(maxLevel);
+			out.writeInt(entry);
+			for (int k=0;k<4;k++) out.writeDouble(weights[k]);
+			out.writeLong(checksum(Arrays.copyOf(data, n)));
+			for (int i=0;i<n;i++) {
+				out.writeInt(levels[i]);
+				for (int l=0;l<=levels[i];l++) {
+					int[] list = links[i][l];
+					for (int k=0;k<=list[0];k++) out.writeInt(list[k]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		FileUtils.replace(tmp, f);
+	}
+
+	/**
+	 * Reads the graph of a directory. Returns null if there is none, or it
+	 * was built for other histograms or weights. Throws an IOException if
+	 * the file is damaged.
+	 */
+	public static HistogramGraph read(String path, double[][] data, double[][] univ,
+									  double[] weights) throws IOException {
+		File f = new File(path+File.separator+INDEX_NAME);
+		if (!f.exists()) return null;
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+			if (in.readInt() != data.length || in.readInt() != M) return null;
+			HistogramGraph g = new HistogramGraph(data, univ, weights);
+			g.maxLevel = in.readInt();
+			g.entry = in.readInt();
+			for (int k=0;k<4;k++) {
+				if (in.readDouble() != weights[k]) return null;
+			}
+			if (in.readLong() != checksum(data)) return null;
+			if (g.n == 0) {
+				if (g.entry != -1) throw damaged(f, "entry "+g.entry);
+				return g;
+			}
+			if (g.maxLevel < 0 || g.maxLevel > MAX_LEVEL) throw damaged(f, "level "+g.maxLevel);
+			if (g.entry < 0 || g.entry >= g.n) throw damaged(f, "entry "+g.entry);
+			for (int i=0;i<g.n;i++) {
+				int level = in.readInt();
+				if (level < 0 || level > g.maxLevel) throw damaged(f, "level "+level+" of "+i);
+				g.levels[i] = level;
+				g.links[i] = new int[level+1][];
+				for (int l=0;l<=level;l++) {
+					int[] list = new int[1+maxLinks(l)];
+					list[0] = in.readInt();
+					if (list[0] < 0 || list[0] > maxLinks(l))
+						throw damaged(f, list[0]+" links of "+i);
+					for (int k=1;k<=list[0];k++) {
+						list[k] = in.readInt();
+						if (list[k] < 0 || list[k] >= g.n) throw damaged(f, "link "+list[k]+" of "+i);
+					}
+					g.links[i][l] = list;
+				}
+			}
+			if (g.levels[g.entry] != g.maxLevel) throw damaged(f, "entry "+g.entry);
+			// a query follows the links of a level to nodes that must have it
+			for (int i=0;i<g.n;i++) {
+				for (int l=1;l<=g.levels[i];l++) {
+					int[] list = g.links[i][l];
+					for (int k=1;k<=list[0];k++) {
+						if (g.levels[list[k]] < l) throw damaged(f, "link "+list[k]+" of "+i);
+					}
+				}
+			}
+			return g;
+		} finally {
+			in.close();
+		}
+	}
+
+	static IOException damaged(File f, String what) {
+		return new IOException("HistogramGraph: "+f+" is damaged: "+what);
+	}
+}
@@ -38,11 +38,25 @@ public class ImageRetrieval implements Runnable {
 	};
 	
 	public static final int TIMEOUT = 10;
+	/** Relative error allowed to the lower bound of the distance, see scan() */
+	static final double BOUND_SLACK = 1e-9;
 	
 	/** Distance threshold for retrieval. If distance > th, not retrieved */
 	public double threshold = 1.0;
 	/** Maximum number of images to display */
 	public int maxImages = 10;
+	/**
+	 * Search the directories with their HistogramGraph instead of computing
+	 * the distance to every image. The graphs are read (or built) by
+	 * addLocalDB(), so set it before. The images added later go into the
+	 * graph of their directory. The graphs are only used with the weights
+	 * they were built with, after changing them all the images are scanned.
+	 */
+	public boolean approximate = false;
+	/** Images explored in every graph: higher finds more of the best ones, but slower */
+	public int ef = 64;
+	/** Page of results to display, of maxImages each */
+	public int page = 0;
 	
 	ImageFileFilter filter;
 
@@ -50,6 +64,19 @@ public class ImageRetrieval implements Runnable {
 	double[][] imageDB;
 	double[][] univHistoDB;
 	String[] paths;
+	/** 1 / number of colors of every bin of the universal histogram */
+	double[] univScale;
+	/** Words of the paths, see KeywordIndex */
+	KeywordIndex keywords;
+	/**
+	 * Graphs of the directories, the id of the image of every node (-1 if
+	 * it has been removed) and the directory of each one
+	 */
+	HistogramGraph[] graphs;
+	int[][] graphIds;
+	String[] graphDirs;
+	/** The images in no graph, which are scanned */
+	BitSet ungraphed;
 	Vector retrieved;
 	
 	/** Weights learned with the ordered logit */
@@ -79,6 +106,14 @@ public class ImageRetrieval implements Runnable {
 		
 	public ImageRetrieval(double[] query) {
 		imageDB = null;
+		keywords = new KeywordIndex();
+		graphs = new HistogramGraph[0];
+		graphIds = new int[0][];
+		graphDirs = new String[0];
+		ungraphed = new BitSet();
+		univScale = new double[11];
+		for (int i=0;i<equivalences.length;i++) univScale[equivalences[i]]++;
+		for (int i=0;i<univScale.length;i++) univScale[i] = 1./univScale[i];
 		retrieved = new Vector();
 		this.query = query;
 		
@@ -131,31 +166,49 @@ public class ImageRetrieval implements Runnable {
 		this.imageDB = imageDB;
 	}
 		
-	public void addLocalDB(String path) throws java.io.FileNotFoundException,
+	public synchronized void addLocalDB(String path) throws java.io.FileNotFoundException,
 		java.io.IOException {
 		File indexFile = new File(path+File.separator+INDEX_NAME);
 
 		print(path);
-		File[] fileList = FileUtils.ls(path,filter);
-		// we assume that the index is up to date...
+		// line i of the index belongs to file i of the manifest
+		Manifest manifest = Manifest.forIndex(path,filter);
+		if (manifest == null) {
+			print("ImageRetrieval: no complete index in "+path);
+			return;
+		}
+		int n = manifest.size();
 		
-		BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+		BinaryIndex bindex = BinaryIndex.open(path);
+		String[] histograms = null;
+		if (bindex == null || bindex.size() != n) {
+			bindex = null;
+			histograms = manifest.readLines(indexFile, true);
+			if (histograms == null) {
+				print("ImageRetrieval: the index of "+path+" is incomplete");
+				return;
+			}
+		}
 		
 		int initialSize = 0;
 		if (imageDB != null) {
 			initialSize = imageDB.length;
 		}
 		
-		double[][] idb = new double[initialSize+fileList.length][];
-		double[][] hdb = new double[initialSize+fileList.length][];
-		String[] ps = new String[initialSize+fileList.length];
-		for (int i = 0; i < fileList.length; i++) {
-			File f = fileList[i];
-			String descriptor = reader.readLine();
-			//System.out.println(f+": "+descriptor);
-			idb[initialSize+i]=AMath.vectorDouble(descriptor);
+		double[][] idb = new double[initialSize+n][];
+		double[][] hdb = new double[initialSize+n][];
+		String[] ps = new String[initialSize+n];
+		for (int i = 0; i < n; i++) {
+			File f = new File(path, manifest.get(i).name);
+			if (bindex != null) {
+				idb[initialSize+i]=bindex.getHistogram(i);
+			} else {
+				//System.out.println(f+": "+histograms[i]);
+				idb[initialSize+i]=AMath.vectorDouble(histograms[i]);
+			}
 			hdb[initialSize+i]=universalHistogram(idb[initialSize+i]);
 			ps[initialSize+i]=f.getAbsolutePath();
+			keywords.add(initialSize+i, ps[initialSize+i]);
 		}
 		
 		if (initialSize>0) {
@@ -170,12 +223,262 @@ public class ImageRetrieval implements Runnable {
 		univHistoDB = hdb;
 		paths = ps;
 		
-		reader.close();
+		if (approximate && n > 0) {
+			double[][] data = Arrays.copyOfRange(idb, initialSize, initialSize+n);
+			double[][] univ = Arrays.copyOfRange(hdb, initialSize, initialSize+n);
+			HistogramGraph graph = null;
+			try {
+				graph = HistogramGraph.read(path, data, univ, getWeights());
+			} catch (IOException e) {
+				// built again below
+				print("ImageRetrieval: "+e);
+			}
+			if (graph == null) {
+				graph = HistogramGraph.build(data, univ, getWeights());
+				try {
+					graph.write(path);
+				} catch (IOException e) {
+					print("ImageRetrieval: can't save the graph of "+path+": "+e);
+				}
+			}
+			int[] ids = new int[n];
+			for (int i=0;i<n;i++) ids[i] = initialSize+i;
+			addGraph(graph, ids, new File(path).getAbsolutePath());
+		}
+		cover();
 		
 		print("ImageRetrieval: "+imageDB.length+" images in the DB.");
 	}
 	
 	
+	/**
+	 * Adds the histogram of an image, or replaces the one with the same
+	 * location. The arrays are copied, so a running query keeps its own.
+	 * See IndexWatcher.
+	 */
+	public void putImage(String location, double[] histogram) {
+		putImages(new String[] {location}, new double[][] {histogram});
+	}
+	
+	/**
+	 * Adds or replaces the histograms of many images, like putImage(), but
+	 * copying the arrays only once.
+	 */
+	public synchronized void putImages(String[] locations, double[][] histograms) {
+		int n = getLength();
+		HashMap<String,Integer> positions = new HashMap<String,Integer>();
+		for (int i=0;i<n;i++) positions.put(paths[i], i);
+		int added = 0;
+		int[] replaced = new int[locations.length];
+		for (int k=0;k<locations.length;k++) {
+			Integer i = positions.get(locations[k]);
+			if (i == null) {
+				// a location twice in the batch: the last one wins
+				positions.put(locations[k], n+added);
+				replaced[k] = -1;
+				added++;
+			} else {
+				replaced[k] = i;
+			}
+		}
+		double[][] idb = new double[n+added][];
+		double[][] hdb = new double[n+added][];
+		String[] ps = new String[n+added];
+		if (n>0) {
+			System.arraycopy(imageDB, 0, idb, 0, n);
+			System.arraycopy(univHistoDB, 0, hdb, 0, n);
+			System.arraycopy(paths, 0, ps, 0, n);
+		}
+		for (int k=0;k<locations.length;k++) {
+			int i = positions.get(locations[k]);
+			idb[i] = histograms[k];
+			hdb[i] = universalHistogram(histograms[k]);
+			if (i >= n && ps[i] == null) {
+				ps[i] = locations[k];
+				keywords.add(i, locations[k]);
+			}
+		}
+		imageDB = idb;
+		univHistoDB = hdb;
+		paths = ps;
+		if (approximate || graphs.length > 0) {
+			// the graph and node of every image, to mark the replaced ones
+			int[] owner = new int[n+added];
+			int[] node = new int[n+added];
+			Arrays.fill(owner, -1);
+			for (int g=0;g<graphs.length;g++) {
+				int[] ids = graphIds[g];
+				for (int j=0;j<ids.length;j++) {
+					if (ids[j] >= 0) { owner[ids[j]] = g; node[ids[j]] = j; }
+				}
+			}
+			int[][] gids = graphIds.clone();
+			boolean[] copied = new boolean[graphs.length];
+			for (int k=0;k<locations.length;k++) {
+				int i = positions.get(locations[k]);
+				int g = owner[i];
+				if (g >= 0) {
+					if (!copied[g]) { gids[g] = gids[g].clone(); copied[g] = true; }
+					gids[g][node[i]] = -1;
+				} else {
+					g = graphOf(new File(locations[k]).getParent());
+					if (g < 0) continue;
+					if (g >= gids.length) {
+						gids = Arrays.copyOf(gids, g+1);
+						gids[g] = new int[0];
+						copied = Arrays.copyOf(copied, g+1);
+					}
+				}
+				int j = graphs[g].add(idb[i], hdb[i]);
+				// the searches keep the old ids, without the new node
+				gids[g] = Arrays.copyOf(gids[g], j+1);
+				gids[g][j] = i;
+				copied[g] = true;
+				owner[i] = g;
+				node[i] = j;
+			}
+			graphIds = gids;
+			compactGraphs();
+		}
+		cover();
+	}
+	
+	/** Removes the image with the given location */
+	public void removeImage(String location) {
+		removeImages(new String[] {location});
+	}
+	
+	/**
+	 * Removes the images with the given locations, copying the arrays only
+	 * once.
+	 */
+	public synchronized void removeImages(String[] locations) {
+		HashSet<String> gone = new HashSet<String>(Arrays.asList(locations));
+		int n = getLength();
+		int[] removed = new int[n];
+		int nremoved = 0;
+		for (int i=0;i<n;i++) {
+			if (gone.contains(paths[i])) removed[nremoved++] = i;
+		}
+		if (nremoved == 0) return;
+		double[][] idb = new double[n-nremoved][];
+		double[][] hdb = new double[n-nremoved][];
+		String[] ps = new String[n-nremoved];
+		// the new id of every image, -1 if removed
+		int[] moved = new int[n];
+		int m = 0;
+		for (int i=0;i<n;i++) {
+			moved[i] = -1;
+			if (gone.contains(paths[i])) continue;
+			idb[m] = imageDB[i];
+			hdb[m] = univHistoDB[i];
+			ps[m] = paths[i];
+			moved[i] = m;
+			m++;
+		}
+		imageDB = idb;
+		univHistoDB = hdb;
+		paths = ps;
+		// the removed nodes stay in the graphs, to reach the others
+		int[][] gids = new int[graphs.length][];
+		for (int g=0;g<graphs.length;g++) {
+			int[] ids = graphIds[g];
+			gids[g] = new int[ids.length];
+			for (int j=0;j<ids.length;j++) gids[g][j] = (ids[j] < 0) ? -1 : moved[ids[j]];
+		}
+		graphIds = gids;
+		compactGraphs();
+		cover();
+		// the images after them have moved
+		keywords.clear();
+		for (int j=0;j<ps.length;j++) keywords.add(j, ps[j]);
+	}
+	
+	/** posW, volW, oriW, colW */
+	double[] getWeights() {
+		return new double[] {posW, volW, oriW, colW};
+	}
+	
+	/** The arrays are replaced, so a running query keeps its own */
+	void addGraph(HistogramGraph graph, int[] ids, String dir) {
+		int n = graphs.length;
+		HistogramGraph[] g = Arrays.copyOf(graphs, n+1);
+		int[][] gids = Arrays.copyOf(graphIds, n+1);
+		String[] d = Arrays.copyOf(graphDirs, n+1);
+		g[n] = graph;
+		gids[n] = ids;
+		d[n] = dir;
+		graphs = g;
+		graphIds = gids;
+		graphDirs = d;
+	}
+	
+	/**
+	 * The graph of a directory. If there is none, a new one when the search
+	 * is approximate, or -1.
+	 */
+	int graphOf(String dir) {
+		for (int g=0;g<graphDirs.length;g++) {
+			if (graphDirs[g].equals(dir)) return g;
+		}
+		if (!approximate) return -1;
+		addGraph(HistogramGraph.build(new double[0][], new double[0][], getWeights()),
+				 new int[0], dir);
+		return graphs.length-1;
+	}
+	
+	/**
+	 * Builds again the graphs with more removed nodes than images, from
+	 * their images, and drops the ones left empty.
+	 */
+	void compactGraphs() {
+		Vector<HistogramGraph> g = new Vector<HistogramGraph>();
+		Vector<int[]> gids = new Vector<int[]>();
+		Vector<String> d = new Vector<String>();
+		boolean changed = false;
+		for (int k=0;k<graphs.length;k++) {
+			int[] ids = graphIds[k];
+			int live = 0;
+			for (int j=0;j<ids.length;j++) if (ids[j] >= 0) live++;
+			if (2*live >= ids.length) {
+				g.add(graphs[k]); gids.add(ids); d.add(graphDirs[k]);
+				continue;
+			}
+			changed = true;
+			if (live == 0) continue;
+			int[] kept = new int[live];
+			double[][] data = new double[live][];
+			double[][] univ = new double[live][];
+			live = 0;
+			for (int j=0;j<ids.length;j++) {
+				if (ids[j] < 0) continue;
+				kept[live] = ids[j];
+				data[live] = imageDB[ids[j]];
+				univ[live] = univHistoDB[ids[j]];
+				live++;
+			}
+			g.add(HistogramGraph.build(data, univ, graphs[k].weights));
+			gids.add(kept);
+			d.add(graphDirs[k]);
+		}
+		if (!changed) return;
+		graphs = g.toArray(new HistogramGraph[g.size()]);
+		graphIds = gids.toArray(new int[g.size()][]);
+		graphDirs = d.toArray(new String[g.size()]);
+	}
+	
+	/** Finds the images in no graph again */
+	void cover() {
+		int n = getLength();
+		BitSet b = new BitSet(n);
+		b.set(0, n);
+		for (int g=0;g<graphIds.length;g++) {
+			int[] ids = graphIds[g];
+			for (int j=0;j<ids.length;j++) if (ids[j] >= 0) b.clear(ids[j]);
+		}
+		ungraphed = b;
+	}
+	
 	double[] universalHistogram(double[] h) {
 		double[] univHisto = new double[11];
 		for (int i=0;i<ObjectImage.CHISTO_SIZE;i++) {
@@ -187,6 +490,52 @@ public class ImageRetrieval implements Runnable {
 	
 
 	
+	/**
+	 * Offers the images from..to-1 closer than the threshold to top. If
+	 * candidates isn't null, only the images in it.
+	 * <p>
+	 * First a lower bound of the distance is computed with the position
+	 * and the universal histograms. Every bin of the universal histogram adds
+	 * n bins of the color histogram, so the difference d of that bin is at
+	 * most sqrt(n) times the distance of those n bins, and the color
+	 * distance is at least sqrt(sum(d*d/n)). The whole distance is only
+	 * computed for the images whose bound doesn't exceed the threshold or
+	 * the worst of the best ones so far. The result is the same as with
+	 * the whole distance of every image.
+	 */
+	void scan(double[] query, double[][] imageDB, double[][] univHistoDB,
+			  double[] univQuery, BitSet candidates, int from, int to, TopK top) {
+		boolean bounded = posW >= 0 && volW >= 0 && oriW >= 0 && colW >= 0;
+		for (int i=from;i<to;i++) {
+			if (candidates != null) {
+				i = candidates.nextSetBit(i);
+				if (i < 0 || i >= to) break;
+			}
+			double[] univ = univHistoDB[i];
+			double usum = 0, csum = 0;
+			for (int c=0;c<univ.length;c++) {
+				double f = univQuery[c]-univ[c];
+				usum += f*f;
+				csum += f*f*univScale[c];
+			}
+			double univdist = Math.sqrt(usum);
+			double pdist = AMath.distance(query,imageDB[i],0,8);
+			if (bounded) {
+				double lower = posW*pdist+colW*Math.sqrt(csum)*univdist;
+				// an image as far as the k-th is behind it, it has a larger id
+				if (lower*(1.-BOUND_SLACK) > Math.min(threshold, top.bound())) continue;
+			}
+			double vdist = AMath.distance(query,imageDB[i],9,18);
+			double sdist = AMath.distance(query,imageDB[i],19,21);
+			double cdist = AMath.distance(query,imageDB[i],22,query.length-1);
+			double distance = posW*pdist+volW*vdist+oriW*sdist+colW*cdist*univdist;
+			
+			if (distance < threshold) {
+				top.offer(distance, i);
+			}
+		}
+	}
+	
 	/** Clear all the retrieved elements in the retrieval window */
 	public void clear() {
 		sjpanel.removeAll();
@@ -198,16 +547,25 @@ public class ImageRetrieval implements Runnable {
 	 * We should start one thread for every Region to be retrieved. 
 	 */
 	public void run() {
+		run(query, null);
+	}
+	
+	/**
+	 * The same for the given query, as a query of a QueryScheduler: it stops
+	 * as soon as the ticket is cancelled, and then the results are not shown.
+	 */
+	public void run(final double[] query, final Cancellable ticket) {
 		try {
 			
 			// wait for a query
 			int timeout=0;
 			while (((query == null) || (imageDB==null))&&timeout<TIMEOUT){
+				if (ticket != null && ticket.isCancelled()) return;
 				Thread.sleep(500); //half second
 				timeout++;
 			}
 			
-			// build a treemap ordered by the weighed distance and the index j
+			// keep the best images by the weighed distance and the index j
 			// paths[j] to get the location
 			// For color, use the product of the distance to the normal histogram
 			//            and the distance to the reduced histogram (11 bins).
@@ -217,40 +575,70 @@ public class ImageRetrieval implements Runnable {
 			//int sdist = AMath.findMin(query,imageDB,19,21);
 			//int cdist = AMath.findMin(query,imageDB,22,query.length-1);
 			//System.out.println("HDistances: "+pdist+", "+vdist+", "+sdist+", "+cdist);
-			String keyword = (textField==null)?"":textField.getText();
+			String keyword = (textField==null)?null:textField.getText();
+			// the IndexWatcher replaces the arrays, keep the current ones
+			final double[][] imageDB;
+			final double[][] univHistoDB;
+			String[] paths;
+			BitSet candidates;
+			final HistogramGraph[] graphs;
+			final int[][] graphIds;
+			BitSet ungraphed;
+			synchronized (this) {
+				imageDB = this.imageDB;
+				univHistoDB = this.univHistoDB;
+				paths = this.paths;
+				// only the images that match the keywords are scanned
+				candidates = keywords.candidates(keyword);
+				graphs = this.graphs;
+				graphIds = this.graphIds;
+				ungraphed = this.ungraphed;
+			}
+			final double[] weights = getWeights();
+			// the graphs can't filter by keywords, then all is scanned
+			boolean useGraphs = approximate && candidates == null && graphs.length > 0;
+			// nor find the closest images with other weights
+			for (int g=0;g<graphs.length && useGraphs;g++) {
+				if (!Arrays.equals(graphs[g].weights, weights)) useGraphs = false;
+			}
+			// then only the images without graph
+			if (useGraphs) candidates = ungraphed;
+			final BitSet scanned = candidates;
+			final double[] univQuery = universalHistogram(query);
 			long time = System.currentTimeMillis();
-			TreeMap<Double,Integer> treemap = new TreeMap<Double,Integer>();
-			for (int i=0;i<imageDB.length;i++) {
-				// check first keywords
-				if (keyword=="" || paths[i].contains(keyword)) {
-					double pdist = AMath.distance(query,imageDB[i],0,8);
-					double vdist = AMath.distance(query,imageDB[i],9,18);
-					double sdist = AMath.distance(query,imageDB[i],19,21);
-					double cdist = AMath.distance(query,imageDB[i],22,query.length-1);
-					double univdist = AMath.distance(universalHistogram(query),univHistoDB[i]);
-					double distance = posW*pdist+volW*vdist+oriW*sdist+colW*cdist*univdist;
-					
-					if (distance < threshold) {
-						treemap.put(new Double(distance), new Integer(i));					
+			TopK top = new TopK((page+1)*maxImages);
+			QueryExecutor.search(imageDB.length, top, new QueryExecutor.Scorer() {
+				public void score(int from, int to, TopK t) {
+					scan(query, imageDB, univHistoDB, univQuery, scanned, from, to, t);
+				}
+			}, ticket);
+			if (useGraphs) {
+				// every graph in its own task
+				TopK found = new TopK(top.capacity());
+				QueryExecutor.search(graphs.length, 1, found, new QueryExecutor.Scorer() {
+					public void score(int from, int to, TopK t) {
+						for (int g=from;g<to;g++) {
+							graphs[g].search(weights, query, univQuery, ef, graphIds[g], threshold, t);
+						}
 					}
-				} // else, keyword didn't match, so don't add
+				}, ticket);
+				top.merge(found);
 			}
+			int n = top.sort();
 			time = System.currentTimeMillis() - time;
 			double t = (double) time / 1000.0;
 			print("Image query time: "+t+" secs.");
 
 			
 			if (sjpanel != null) {
-				clear();
-				
-				int i=0;
+				final Vector<CompositeButton> buttons = new Vector<CompositeButton>();
+				int i=page*maxImages;
 				String minmax = "";
-				Double k = null;
-				while (i<maxImages && treemap.size()>0) {
-					k = treemap.firstKey();
-					Integer v = treemap.remove(k);
-					if (i==0) minmax+=k;
-					String loc = paths[v.intValue()];
+				double k = 0;
+				while (i<n) {
+					k = top.value(i);
+					if (i==page*maxImages) minmax+=k;
+					String loc = paths[top.id(i)];
 					String preview = ObjectImage.previewFromLocation(loc);
 					File fp = new File(preview);
 					BufferedImage icon = null;
@@ -265,16 +653,28 @@ public class ImageRetrieval implements Runnable {
 					ValuePair vp = new ValuePair(0,0,-1,loc);
 					CompositeButton b = new CompositeButton(new ImageIcon(icon), vp);
 					b.addActionListener(sjpanel);
-					sjpanel.add(b);
+					buttons.add(b);
 					i++;
+					if (ticket != null && ticket.isCancelled()) return;
 				}
 				minmax+=", "+k;
 				print("Image distance interval: ("+minmax+")");
-								
-				if (modListener!=null) modListener.imageRetrieved();
-				else sjpanel.validate();
+				
+				// new queries are submitted from the UI thread too, so
+				// a cancelled one can't get in after this check
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if (ticket != null && ticket.isCancelled()) return;
+						clear();
+						for (CompositeButton b : buttons) sjpanel.add(b);
+						if (modListener!=null) modListener.imageRetrieved();
+						else sjpanel.validate();
+					}
+				});
 			}
 			
+		} catch (java.util.concurrent.CancellationException exc) {
+			// superseded by a newer query
 		} catch (Exception exc) {
 			print("ImageRetrieval thread: "+exc);
 		}
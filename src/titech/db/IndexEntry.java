@@ -0,0 +1,46 @@
+//
+//  IndexEntry.java
+//  sketchRC
+//
+package titech.db;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import titech.image.dsp.ObjectImage;
+
+/**
+ * An image going through the IndexPipeline. Every stage fills in its
+ * results and clears what the next stages don't need anymore.
+ */
+class IndexEntry {
+	/** The indexed image */
+	File file;
+	/** Position of the file in the directory list */
+	int seq;
+	/** Its line in the manifest, the writer fills in the offsets */
+	Manifest.Entry record;
+	/** The index lines come from the previous index, nothing to compute */
+	boolean cached;
+	
+	/** Decoded image */
+	BufferedImage image;
+	/** Result of the segmentation */
+	ObjectImage objectImage;
+	/** Thumbnails, see Segmenter.getSegmentedImage() and getQuantizedImage() */
+	BufferedImage segmented;
+	BufferedImage quantized;
+	
+	/** Line for Retrieval.INDEX_NAME, see ObjectImage.getDescriptor() */
+	String descriptor;
+	/** Line for ImageRetrieval.INDEX_NAME */
+	String histogram;
+	/** Record for BinaryIndex */
+	byte[] binary;
+	/** Previous binary index with the record of a cached entry, or null */
+	BinaryIndex source;
+	int sourceIndex;
+	
+	IndexEntry(File file) {
+		this.file = file;
+	}
+}
@@ -0,0 +1,436 @@
+//
+//  IndexPipeline.java
+//  sketchRC
+//
+package titech.db;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import titech.image.math.*;
+import titech.image.dsp.*;
+import titech.file.*;
+import titech.util.*;
+
+/**
+ * Indexes the images of one directory as a pipeline of stages:
+ * <pre>
+ *   decode -> segment -> serialize -> thumbnails -> write
+ * </pre>
+ * Every stage has its own threads, and the stages are joined by bounded
+ * queues, so a slow stage blocks the ones before it instead of piling up
+ * decoded images in memory. While the segmenters are busy with k-means the
+ * decoders are already reading the next images, and the PNG thumbnails are
+ * written in the background.
+ * <p>
+ * The write stage has a single thread and writes the index lines in the
+ * order of the file list, so line i of the indices still belongs to file i.
+ * The entries that are cached from a previous index skip the decoding,
+ * segmentation and thumbnails.
+ * <p>
+ * Every few images the writer makes a checkpoint: it flushes the index
+ * lines and appends their Manifest entries to the checkpoint file, so an
+ * interrupted run can go on from there.
+ */
+class IndexPipeline {
+	public static final int DECODE = 0;
+	public static final int SEGMENT = 1;
+	public static final int SERIALIZE = 2;
+	public static final int THUMBNAILS = 3;
+	public static final int WRITE = 4;
+	public static final String[] STAGE_NAMES = new String[] {
+		"decode", "segment", "serialize", "thumbnails", "write"
+	};
+
+	static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	/** Marks the end of the input of a stage */
+	static final IndexEntry END = new IndexEntry(null);
+
+	Indexer indexer;
+	Stage[] stages;
+
+	String currentPath;
+	IndexEntry[] entryList;
+	PrintWriter iWriter;
+	PrintWriter ihWriter;
+	BinaryIndex.Writer bWriter;
+	/** Appends the committed entries, see checkpoint() */
+	PrintWriter cWriter;
+	int checkpointInterval;
+	/** Number of entries in the checkpoint file */
+	int committed;
+
+	/** Next file to be decoded */
+	AtomicInteger nextFile;
+	/** Limits the number of images between the decoder and the writer */
+	Semaphore inFlight;
+	/** Reorder buffer of the write stage */
+	HashMap<Integer,IndexEntry> pending;
+	int nextWrite;
+	/** Offsets of the next lines of the writers */
+	long descriptorOffset;
+	long histogramOffset;
+
+	volatile boolean aborted;
+	volatile Exception error;
+
+	/**
+	 * @param threads number of threads of each stage. The write stage
+	 *   always has 1 thread.
+	 */
+	IndexPipeline(Indexer indexer, int[] threads) {
+		this.indexer = indexer;
+		stages = new Stage[] {
+			new DecodeStage(threads[DECODE]),
+			new SegmentStage(threads[SEGMENT]),
+			new SerializeStage(threads[SERIALIZE]),
+			new ThumbnailStage(threads[THUMBNAILS]),
+			new WriteStage()
+		};
+		for (int s=0;s<stages.length-1;s++) stages[s].next = stages[s+1];
+	}
+
+	/**
+	 * Indexes the entries of currentPath, in order, writing the index lines.
+	 * Returns when all the stages have finished, or after an abort().
+	 * A pipeline runs only once.
+	 */
+	void run(String currentPath, IndexEntry[] entryList, PrintWriter iWriter, PrintWriter ihWriter,
+			 BinaryIndex.Writer bWriter, PrintWriter cWriter, int checkpointInterval)
+		throws IOException, InterruptedException {
+		this.currentPath = currentPath;
+		this.entryList = entryList;
+		this.iWriter = iWriter;
+		this.ihWriter = ihWriter;
+		this.bWriter = bWriter;
+		this.cWriter = cWriter;
+		this.checkpointInterval = Math.max(1, checkpointInterval);
+		committed = 0;
+		Manifest.writeHeader(cWriter);
+		cWriter.flush();
+		nextFile = new AtomicInteger(0);
+		inFlight = new Semaphore(4*stages[SEGMENT].nthreads + 4);
+		pending = new HashMap<Integer,IndexEntry>();
+		nextWrite = 0;
+		descriptorOffset = 0;
+		histogramOffset = 0;
+
+		Vector<Thread> threads = new Vector<Thread>();
+		for (int s=0;s<stages.length;s++) {
+			Stage stage = stages[s];
+			stage.start();
+			for (int t=0;t<stage.nthreads;t++) {
+				Thread th = new Thread(stage, "index-"+stage.name+"-"+t);
+				th.setDaemon(true);
+				threads.add(th);
+			}
+		}
+		for (Thread th : threads) th.start();
+		try {
+			for (Thread th : threads) th.join();
+		} catch (InterruptedException e) {
+			abort();
+			for (Thread th : threads) th.interrupt();
+			throw e;
+		}
+
+		if (error != null) {
+			throw new IOException("Indexer: "+error);
+		}
+	}
+
+	/** Stops feeding images and drops the ones that are in flight */
+	void abort() {
+		aborted = true;
+	}
+
+	/**
+	 * Flushes the index lines written so far and adds their entries to
+	 * the checkpoint file.
+	 */
+	synchronized void checkpoint() {
+		if (committed == nextWrite) return;
+		iWriter.flush();
+		ihWriter.flush();
+		if (iWriter.checkError() || ihWriter.checkError()) return;
+		for (int i=committed;i<nextWrite;i++) Manifest.write(cWriter, entryList[i].record);
+		cWriter.flush();
+		committed = nextWrite;
+	}
+
+	private void fail(Exception e) {
+		if (error == null) error = e;
+		aborted = true;
+	}
+
+	/** Throughput of every stage, in a line per stage */
+	String getStats() {
+		String stats = "";
+		for (int s=0;s<stages.length;s++) {
+			stats += stages[s].toString()+"\n";
+		}
+		return stats;
+	}
+
+	/**
+	 * A stage of the pipeline. It takes the entries from its input queue,
+	 * processes them and passes them to the next stage. The last thread of
+	 * a stage to finish passes the END mark to the next one.
+	 */
+	abstract class Stage implements Runnable {
+		String name;
+		int nthreads;
+		BlockingQueue<IndexEntry> input;
+		Stage next;
+
+		AtomicInteger alive;
+		AtomicInteger count;
+		AtomicLong busyTime;
+		long startTime;
+
+		Stage(int stage, int nthreads) {
+			this.name = STAGE_NAMES[stage];
+			this.nthreads = Math.max(1, nthreads);
+			// room for a couple of entries per thread
+			input = new ArrayBlockingQueue<IndexEntry>(2*this.nthreads);
+			alive = new AtomicInteger();
+			count = new AtomicInteger();
+			busyTime = new AtomicLong();
+		}
+
+		void start() {
+			input.clear();
+			alive.set(nthreads);
+			count.set(0);
+			busyTime.set(0);
+			startTime = System.nanoTime();
+		}
+
+		/** Per-thread state, created by each worker of the stage */
+		Object newLocal() {
+			return null;
+		}
+
+		IndexEntry take() throws InterruptedException {
+			IndexEntry entry = input.take();
+			// let the other threads of this stage see the END too
+			if (entry == END) input.put(END);
+			return entry;
+		}
+
+		/** Cached entries skip most of the stages */
+		boolean accepts(IndexEntry entry) {
+			return !entry.cached;
+		}
+
+		abstract void process(IndexEntry entry, Object local) throws IOException;
+
+		/** Called for the entries leaving the last stage */
+		void finish(IndexEntry entry) {
+		}
+
+		public void run() {
+			Object local = newLocal();
+			try {
+				IndexEntry entry = take();
+				while (entry != END) {
+					if (!aborted && accepts(entry)) {
+						long time = System.nanoTime();
+						try {
+							process(entry, local);
+						} catch (Exception e) {
+							fail(e);
+						}
+						busyTime.addAndGet(System.nanoTime() - time);
+						count.incrementAndGet();
+					}
+					if (next != null) next.input.put(entry);
+					else finish(entry);
+					entry = take();
+				}
+			} catch (InterruptedException e) {
+				aborted = true;
+			} finally {
+				if (alive.decrementAndGet() == 0 && next != null) {
+					try {
+						next.input.put(END);
+					} catch (InterruptedException e) {
+						aborted = true;
+					}
+				}
+			}
+		}
+
+		/** Images per second since the stage started */
+		double getThroughput() {
+			double secs = (System.nanoTime() - startTime) / 1e9;
+			return (secs > 0) ? count.get() / secs : 0;
+		}
+
+		/** Fraction of the time the threads of this stage were working */
+		double getUtilization() {
+			double wall = (double)(System.nanoTime() - startTime) * nthreads;
+			return (wall > 0) ? busyTime.get() / wall : 0;
+		}
+
+		public String toString() {
+			return name+" ("+nthreads+"): "+count.get()+" images, "+
+				Math.round(getThroughput()*10)/10.+" img/s, "+
+				Math.round(getUtilization()*100)+"% busy";
+		}
+	}
+
+	/** Reads the images from disk */
+	class DecodeStage extends Stage {
+		DecodeStage(int nthreads) {
+			super(DECODE, nthreads);
+		}
+
+		/** The input of the decoders is the entry list itself */
+		IndexEntry take() throws InterruptedException {
+			if (aborted) return END;
+			inFlight.acquire();
+			int i = nextFile.getAndIncrement();
+			if (aborted || i >= entryList.length) {
+				inFlight.release();
+				return END;
+			}
+			return entryList[i];
+		}
+
+		void process(IndexEntry entry, Object local) throws IOException {
+			// the segmenter only looks at a IMGLONG thumbnail
+			entry.image = Utilities.loadImage(entry.file, Segmenter.IMGLONG);
+		}
+	}
+
+	/** Computes the regions, one Segmenter per thread */
+	class SegmentStage extends Stage {
+		SegmentStage(int nthreads) {
+			super(SEGMENT, nthreads);
+		}
+
+		Object newLocal() {
+			return new Segmenter();
+		}
+
+		void process(IndexEntry entry, Object local) throws IOException {
+			Segmenter segmenter = (Segmenter)local;
+			entry.objectImage = segmenter.getKMedianRegions(entry.image);
+			entry.image = null;
+			// the segmenter will overwrite them with the next image
+			entry.segmented = segmenter.getSegmentedImage();
+			entry.quantized = segmenter.getQuantizedImage();
+		}
+	}
+
+	/** Formats the index lines and the binary record */
+	class SerializeStage extends Stage {
+		SerializeStage(int nthreads) {
+			super(SERIALIZE, nthreads);
+		}
+
+		/** The cached entries only have the text lines, or a previous record */
+		boolean accepts(IndexEntry entry) {
+			return true;
+		}
+
+		void process(IndexEntry entry, Object local) throws IOException {
+			if (entry.cached) {
+				if (entry.source != null) {
+					entry.binary = entry.source.getRecord(entry.sourceIndex);
+					entry.source = null;
+				} else {
+					// resumed from a checkpoint, the partial binary index can't be read
+					entry.binary = BinaryIndex.encode(new ObjectImage(entry.descriptor),
+													  AMath.vectorDouble(entry.histogram));
+				}
+				return;
+			}
+			ObjectImage objectImage = entry.objectImage;
+			// regions - separated by spaces
+			entry.descriptor = objectImage.getDescriptor();
+
+			// histogram - separated by commas...
+			// it contains both region and color histograms
+			double[] rh = objectImage.getHistogram();
+			entry.histogram = AMath.showVector(rh);
+			entry.binary = BinaryIndex.encode(objectImage, rh);
+			entry.objectImage = null;
+		}
+	}
+
+	/** Saves the segmented and the color-clustered thumbnails */
+	class ThumbnailStage extends Stage {
+		ThumbnailStage(int nthreads) {
+			super(THUMBNAILS, nthreads);
+		}
+
+		void process(IndexEntry entry, Object local) throws IOException {
+			String name = FileUtils.nameWOExtension(entry.file.getName());
+			Utilities.saveImage(entry.segmented, "png",
+					  currentPath+File.separator+Retrieval.THUMBSDIR+
+					  File.separator+name+".png");
+
+			// save also the color-clustered thumbnail for convenience
+			Utilities.saveImage(entry.quantized, "png",
+					  currentPath+File.separator+Retrieval.THUMBSDIR+
+					  File.separator+name+"-ccat.png");
+			entry.segmented = null;
+			entry.quantized = null;
+		}
+	}
+
+	/** Writes the index lines in the order of the file list */
+	class WriteStage extends Stage {
+		WriteStage() {
+			super(WRITE, 1);
+		}
+
+		boolean accepts(IndexEntry entry) {
+			return true;
+		}
+
+		void process(IndexEntry entry, Object local) throws IOException {
+			synchronized (IndexPipeline.this) {
+				write(entry);
+			}
+			if (nextWrite - committed >= checkpointInterval) checkpoint();
+		}
+
+		void write(IndexEntry entry) throws IOException {
+			pending.put(entry.seq, entry);
+			IndexEntry ready = pending.remove(nextWrite);
+			while (ready != null) {
+				ready.record.descriptorOffset = descriptorOffset;
+				ready.record.histogramOffset = histogramOffset;
+				iWriter.println(ready.descriptor);
+				ihWriter.println(ready.histogram);
+				bWriter.add(ready.binary);
+				ready.binary = null;
+				// the lines are ASCII
+				descriptorOffset += ready.descriptor.length() + LINE_SEPARATOR.length();
+				histogramOffset += ready.histogram.length() + LINE_SEPARATOR.length();
+				nextWrite++;
+				inFlight.release();
+				indexer.written(ready);
+				ready = pending.remove(nextWrite);
+			}
+			if (iWriter.checkError() || ihWriter.checkError()) {
+				throw new IOException("can't write the index of "+currentPath);
+			}
+		}
+
+		/** Nothing else will be written after an abort, let the decoders go */
+		void finish(IndexEntry entry) {
+			if (aborted) {
+				inFlight.release(1 + pending.size());
+				pending.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+//
+//  IndexWatcher.java
+//  sketchRC
+//
+package titech.db;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import titech.file.*;
+import titech.image.math.*;
+import titech.image.dsp.*;
+
+/**
+ * Keeps the indices of some directories up to date while the program runs.
+ * <p>
+ * It watches the directories with a WatchService. When images are added,
+ * changed or removed, it waits until the directory has been quiet for
+ * DEBOUNCE milliseconds, so a copy of many photos is indexed once, and then
+ * updates its index with Indexer.update(). Only the new or changed images
+ * are segmented (see Manifest). They are published into the Retrieval and
+ * the ImageRetrieval, and the removed ones are taken out of them.
+ */
+public class IndexWatcher implements Runnable {
+	/** Time without events before a directory is reindexed, in ms */
+	public static final long DEBOUNCE = 2000;
+
+	Retrieval retrieval;
+	ImageRetrieval iretrieval;
+	ImageFileFilter filter;
+
+	WatchService watchService;
+	/** Watched directories */
+	Hashtable<WatchKey,File> keys;
+	/** Last manifest of every directory, to see what changed */
+	Hashtable<File,Manifest> manifests;
+	/** Directories waiting to be reindexed, and the time of their last event */
+	HashMap<File,Long> dirty;
+
+	volatile boolean halt;
+	Thread thread;
+
+	public IndexWatcher(Retrieval retrieval, ImageRetrieval iretrieval) throws IOException {
+		this.retrieval = retrieval;
+		this.iretrieval = iretrieval;
+
+		filter = new ImageFileFilter();
+		filter.addExtension("jpg");
+		filter.addExtension("png");
+		filter.addExtension("jpeg");
+		filter.addExtension("bmp");
+		filter.addExtension("tiff");
+
+		watchService = FileSystems.getDefault().newWatchService();
+		keys = new Hashtable<WatchKey,File>();
+		manifests = new Hashtable<File,Manifest>();
+		dirty = new HashMap<File,Long>();
+		halt = false;
+	}
+
+	/** Watches a directory and its subdirectories */
+	public void watch(String path) throws IOException {
+		File root = new File(path).getAbsoluteFile();
+		register(root);
+		File[] recList = FileUtils.lsDirsR(root.getPath());
+		if (recList == null) return;
+		for (int i=0;i<recList.length;i++) register(recList[i].getAbsoluteFile());
+	}
+
+	synchronized void register(File dir) throws IOException {
+		if (manifests.containsKey(dir)) return;
+		WatchKey key = dir.toPath().register(watchService,
+											 StandardWatchEventKinds.ENTRY_CREATE,
+											 StandardWatchEventKinds.ENTRY_DELETE,
+											 StandardWatchEventKinds.ENTRY_MODIFY);
+		keys.put(key, dir);
+		Manifest m = Manifest.read(dir.getPath());
+		manifests.put(dir, (m == null) ? new Manifest() : m);
+	}
+
+	public void start() {
+		thread = new Thread(this, "index-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void halt() {
+		halt = true;
+		if (thread != null) thread.interrupt();
+	}
+
+	public void run() {
+		try {
+			while (!halt) {
+				WatchKey key = watchService.poll(DEBOUNCE/4, java.util.concurrent.TimeUnit.MILLISECONDS);
+				while (key != null) {
+					events(key);
+					key = watchService.poll();
+				}
+
+				long now = System.currentTimeMillis();
+				Vector<File> ready = new Vector<File>();
+				for (Map.Entry<File,Long> e : dirty.entrySet()) {
+					if (now - e.getValue() >= DEBOUNCE) ready.add(e.getKey());
+				}
+				for (File dir : ready) {
+					dirty.remove(dir);
+					update(dir);
+				}
+			}
+		} catch (InterruptedException e) {
+			// halted
+		} catch (ClosedWatchServiceException e) {
+			// halted
+		}
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			System.err.println("IndexWatcher: "+e);
+		}
+	}
+
+	/** Marks the directories with changed images */
+	void events(WatchKey key) {
+		File dir = keys.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// lost events, let the manifest find out
+				dirty.put(dir, System.currentTimeMillis());
+				continue;
+			}
+			File f = new File(dir, event.context().toString());
+			String name = f.getName();
+			// the index files
+			if (name.startsWith(".")) continue;
+			// the thumbnail directories
+			if ((name.equals(Retrieval.THUMBSDIR) || name.equals(Retrieval.PREVIEWDIR)) &&
+				f.isDirectory()) continue;
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && f.isDirectory()) {
+				try {
+					watch(f.getPath());
+					dirty.put(f, System.currentTimeMillis());
+					File[] recList = FileUtils.lsDirsR(f.getPath());
+					for (int i=0;recList!=null && i<recList.length;i++) {
+						dirty.put(recList[i].getAbsoluteFile(), System.currentTimeMillis());
+					}
+				} catch (IOException e) {
+					System.err.println("IndexWatcher: "+e);
+				}
+			} else if (filter.accept(f) || manifests.get(dir).indexOf(name) >= 0) {
+				dirty.put(dir, System.currentTimeMillis());
+			}
+		}
+		if (!key.reset()) { // the directory is gone
+			keys.remove(key);
+			dirty.remove(dir);
+			Manifest previous = manifests.remove(dir);
+			String[] gone = new String[previous.size()];
+			for (int i=0;i<gone.length;i++) {
+				gone[i] = new File(dir, previous.get(i).name).getAbsolutePath();
+			}
+			unpublish(gone);
+		}
+	}
+
+	/** Reindexes a directory and publishes the images that changed */
+	void update(File dir) {
+		if (!dir.isDirectory()) return;
+		try {
+			Indexer indexer = new Indexer(dir.getPath());
+			if (!indexer.update(dir.getPath())) return;
+
+			Manifest previous = manifests.get(dir);
+			Manifest manifest = Manifest.read(dir.getPath());
+			if (manifest == null) return;
+			manifests.put(dir, manifest);
+
+			String path = dir.getPath();
+			BinaryIndex bindex = BinaryIndex.open(path);
+			String[] descriptors = null;
+			String[] histograms = null;
+			if (bindex == null || bindex.size() != manifest.size()) {
+				bindex = null;
+				descriptors = manifest.readLines(new File(path, Retrieval.INDEX_NAME), false);
+				histograms = manifest.readLines(new File(path, ImageRetrieval.INDEX_NAME), true);
+				if (descriptors == null || histograms == null) return;
+			}
+
+			Vector<String> locations = new Vector<String>();
+			Vector<double[]> changed = new Vector<double[]>();
+			for (int i=0;i<manifest.size();i++) {
+				Manifest.Entry e = manifest.get(i);
+				int j = previous.indexOf(e.name);
+				if (j >= 0 && previous.get(j).sameStamp(e)) continue;
+				String location = new File(dir, e.name).getAbsolutePath();
+				double[] histogram;
+				if (bindex != null) {
+					histogram = bindex.getHistogram(i);
+					if (retrieval != null) retrieval.putImage(location, bindex.getDescriptor(i));
+				} else {
+					histogram = AMath.vectorDouble(histograms[i]);
+					ObjectImage obi = new ObjectImage(descriptors[i]);
+					obi.setLocation(location);
+					if (retrieval != null) retrieval.putImage(obi);
+				}
+				locations.add(location);
+				changed.add(histogram);
+			}
+			int published = locations.size();
+			if (iretrieval != null && published > 0) {
+				// the histograms are copied once for all of them
+				iretrieval.putImages(locations.toArray(new String[published]),
+									 changed.toArray(new double[published][]));
+			}
+			Vector<String> gone = new Vector<String>();
+			for (int i=0;i<previous.size();i++) {
+				String name = previous.get(i).name;
+				if (manifest.indexOf(name) < 0) gone.add(new File(dir, name).getAbsolutePath());
+			}
+			int removed = gone.size();
+			unpublish(gone.toArray(new String[removed]));
+			print("IndexWatcher: "+path+": "+published+" images updated, "+removed+" removed.");
+		} catch (IOException e) {
+			System.err.println("IndexWatcher: "+e);
+		}
+	}
+
+	void unpublish(String[] locations) {
+		if (locations.length == 0) return;
+		if (retrieval != null) {
+			for (int i=0;i<locations.length;i++) retrieval.removeImage(locations[i]);
+		}
+		if (iretrieval != null) iretrieval.removeImages(locations);
+	}
+
+	void print(String text) {
+		if (retrieval != null) retrieval.print(text);
+		else System.out.println(text);
+	}
+}
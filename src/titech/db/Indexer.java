@@ -9,6 +9,7 @@ package titech.db;
 
 import java.awt.image.*;
 import java.io.*;
+import java.util.*;
 
 import titech.image.math.*;
 import titech.image.dsp.*;
@@ -17,12 +18,16 @@ import titech.wt.*;
 import titech.util.*;
 
 public class Indexer implements Runnable, Task {
+	/** Suffix of the index files while they are being written */
+	public static final String PARTIAL = ".partial";
+	/** Default number of images between checkpoints */
+	public static final int CHECKPOINT = 32;
 	
 	String path;
 	boolean done;
-	boolean halt;
+	volatile boolean halt;
 	String statMessage;
-	int current;
+	volatile int current;
 	
 	ImageFileFilter filter;
 	File[] fileList;
@@ -33,6 +38,25 @@ public class Indexer implements Runnable, Task {
 	private boolean isDirectory;
 	/** Use this if you wanna force rebuilding the indeces */
 	private boolean rebuild;
+	/** Compare the contents of the touched files, see Manifest.hash() */
+	private boolean hashing;
+	/** Number of images between checkpoints */
+	private int checkpointInterval;
+	/** Number of threads of each stage of the IndexPipeline */
+	private int[] stageThreads;
+	/** The pipeline indexing the current directory */
+	private IndexPipeline pipeline;
+	private String currentPath;
+	/**
+	 * A lock per directory being indexed, so two Indexers never write the
+	 * same index. It is removed when nobody holds it or waits for it.
+	 */
+	static Hashtable<String,DirectoryLock> locks = new Hashtable<String,DirectoryLock>();
+	
+	static class DirectoryLock {
+		/** Indexers holding it or waiting for it */
+		int holders = 0;
+	}
 	
 	public Indexer(String path) {
 		this(path, null, null);
@@ -44,6 +68,10 @@ public class Indexer implements Runnable, Task {
 		this.iretrieval = iretrieval;
 		isDirectory = false;
 		rebuild = false;
+		hashing = false;
+		checkpointInterval = CHECKPOINT;
+		stageThreads = new int[IndexPipeline.STAGE_NAMES.length];
+		setThreads(Runtime.getRuntime().availableProcessors());
 		done = false;
 		halt = false;
 		current = 0;
@@ -87,6 +115,55 @@ public class Indexer implements Runnable, Task {
 	
 	public void halt() {
 		halt = true;
+		IndexPipeline p = pipeline;
+		if (p != null) p.abort();
+	}
+	
+	/**
+	 * Sets the number of images segmented at the same time.
+	 * Decoding and serializing get as many threads, and the thumbnails half of them.
+	 */
+	public void setThreads(int nthreads) {
+		nthreads = Math.max(1, nthreads);
+		stageThreads[IndexPipeline.DECODE] = nthreads;
+		stageThreads[IndexPipeline.SEGMENT] = nthreads;
+		stageThreads[IndexPipeline.SERIALIZE] = nthreads;
+		stageThreads[IndexPipeline.THUMBNAILS] = Math.max(1, nthreads/2);
+		stageThreads[IndexPipeline.WRITE] = 1;
+	}
+	
+	/**
+	 * Sets the number of threads of a single stage of the pipeline, 
+	 * see IndexPipeline.DECODE, etc. The writer has always 1 thread.
+	 */
+	public void setStageThreads(int stage, int nthreads) {
+		if (stage != IndexPipeline.WRITE) stageThreads[stage] = Math.max(1, nthreads);
+	}
+	
+	public int getStageThreads(int stage) {
+		return stageThreads[stage];
+	}
+	
+	/**
+	 * Keeps an MD5 of every indexed file, so a file that has been touched
+	 * but not modified isn't segmented again. Costs reading the whole file
+	 * the first time.
+	 */
+	public void setHashing(boolean hashing) {
+		this.hashing = hashing;
+	}
+	
+	/**
+	 * Sets how often the progress is saved. A halted or crashed run
+	 * loses at most this number of images.
+	 */
+	public void setCheckpoint(int images) {
+		checkpointInterval = Math.max(1, images);
+	}
+	
+	/** Throughput of each stage of the last indexed directory */
+	public String getStats() {
+		return (pipeline == null) ? "" : pipeline.getStats();
 	}
 	
 	public int getLengthOfTask() {
@@ -102,28 +179,156 @@ public class Indexer implements Runnable, Task {
 	}
 	
 	/**
-	 * Returns true if the index has been created.
-	 * False if the index files already existed.
+	 * Returns true if the index has been (re)written.
+	 * False if the index files were already up to date.
+	 * <p>
+	 * Only the files that were added or changed since the last time, according
+	 * to the Manifest, are segmented again. The lines of the other files are
+	 * copied from the previous index.
+	 * <p>
+	 * The new index is written to PARTIAL files, with checkpoints, and they
+	 * replace the index files only when it is complete. If the indexing is
+	 * halted or crashes, the next run goes on from the last checkpoint.
+	 * <p>
+	 * Another Indexer of the same directory (like the one of the
+	 * IndexWatcher) waits until this one is done.
 	 */
 	public boolean indexDir(String currentPath) throws IOException {
+		String key = new File(currentPath).getCanonicalPath();
+		DirectoryLock lock;
+		synchronized (locks) {
+			lock = locks.get(key);
+			if (lock == null) {
+				lock = new DirectoryLock();
+				locks.put(key, lock);
+			}
+			lock.holders++;
+		}
+		try {
+			synchronized (lock) {
+				return index(currentPath);
+			}
+		} finally {
+			synchronized (locks) {
+				if (--lock.holders == 0) locks.remove(key);
+			}
+		}
+	}
+	
+	boolean index(String currentPath) throws IOException {
 		
 		// load the colormap for the color histogram
 		//interpret("resource /resources/histogram.palette");
 		
 		File indexFile = new File(currentPath+File.separator+Retrieval.INDEX_NAME);
 		File histogramFile = new File(currentPath+File.separator+ImageRetrieval.INDEX_NAME);
-		boolean sameDate = (indexFile.lastModified()>=(new File(currentPath)).lastModified());
-		if (indexFile.exists() && histogramFile.exists() && sameDate && !rebuild) {
+		File binaryFile = new File(currentPath+File.separator+BinaryIndex.INDEX_NAME);
+		File partialIndex = new File(indexFile.getPath()+PARTIAL);
+		File partialHistogram = new File(histogramFile.getPath()+PARTIAL);
+		File partialBinary = new File(binaryFile.getPath()+PARTIAL);
+		File checkpointFile = new File(currentPath+File.separator+Manifest.CHECKPOINT_NAME);
+		
+		// what we have already indexed
+		Manifest previous = null;
+		String[] descriptors = null;
+		String[] histograms = null;
+		BinaryIndex pbinary = null;
+		if (indexFile.exists() && histogramFile.exists() && !rebuild) {
+			previous = Manifest.read(currentPath);
+			if (previous == null) {
+				// index without manifest: trust it as before, if it is newer
+				// than the directory and has a line per file
+				boolean sameDate = (indexFile.lastModified()>=(new File(currentPath)).lastModified());
+				if (sameDate) previous = Manifest.fromIndex(fileList, indexFile, histogramFile);
+			}
+			if (previous != null) {
+				descriptors = previous.readLines(indexFile, false);
+				histograms = previous.readLines(histogramFile, true);
+				if (descriptors == null || histograms == null) previous = null;
+			}
+			if (previous != null) {
+				// its records are copied instead of encoding the lines again
+				pbinary = BinaryIndex.open(currentPath);
+				if (pbinary != null && pbinary.size() != previous.size()) pbinary = null;
+			}
+		}
+		
+		// what an interrupted run had already committed
+		Manifest checkpoint = null;
+		String[] cdescriptors = null;
+		String[] chistograms = null;
+		if (partialIndex.exists() && partialHistogram.exists() && !rebuild) {
+			checkpoint = Manifest.read(checkpointFile);
+			if (checkpoint != null) {
+				cdescriptors = checkpoint.readLines(partialIndex, false);
+				chistograms = checkpoint.readLines(partialHistogram, true);
+				if (cdescriptors == null || chistograms == null) checkpoint = null;
+			}
+		}
+		
+		Manifest manifest = new Manifest();
+		IndexEntry[] entryList = new IndexEntry[fileList.length];
+		int changed = 0;
+		int resumed = 0;
+		for (int i=0;i<fileList.length;i++) {
+			File f = fileList[i];
+			IndexEntry entry = new IndexEntry(f);
+			entry.seq = i;
+			entry.record = new Manifest.Entry(f);
+			int j = (previous == null) ? -1 : previous.indexOf(f.getName());
+			int k = (checkpoint == null) ? -1 : checkpoint.indexOf(f.getName());
+			if (j >= 0 && isUnchanged(previous.get(j), entry.record, currentPath)) {
+				entry.descriptor = descriptors[j];
+				entry.histogram = histograms[j];
+				// where the lines are, if the index is kept as it is
+				entry.record.descriptorOffset = previous.get(j).descriptorOffset;
+				entry.record.histogramOffset = previous.get(j).histogramOffset;
+				if (pbinary != null) {
+					entry.source = pbinary;
+					entry.sourceIndex = j;
+				}
+				entry.cached = true;
+				if (j != i) changed++; // moved
+			} else if (k >= 0 && isUnchanged(checkpoint.get(k), entry.record, currentPath)) {
+				entry.descriptor = cdescriptors[k];
+				entry.histogram = chistograms[k];
+				entry.cached = true;
+				changed++;
+				resumed++;
+			} else {
+				if (hashing) entry.record.hash = Manifest.hash(f);
+				changed++;
+			}
+			manifest.add(entry.record);
+			entryList[i] = entry;
+		}
+		if (previous != null && changed == 0 && previous.size() == fileList.length) {
 			// give up, since it's already computed
-			// The consistency is only checked by sameDate!
+			if (Manifest.read(currentPath) == null) manifest.write(currentPath);
+			BinaryIndex bindex = BinaryIndex.open(currentPath);
+			if (bindex == null || bindex.size() != fileList.length) {
+				try {
+					BinaryIndex.convert(currentPath, filter);
+				} catch (IOException e) {
+					// the text index is still there, retrieval reads it instead
+					System.err.println("Indexer: "+e);
+				}
+			}
+			checkpointFile.delete();
+			partialIndex.delete();
+			partialHistogram.delete();
+			partialBinary.delete();
 			return false;
 		}
+		if (resumed > 0) {
+			System.out.println("Resuming "+currentPath+": "+resumed+" images already indexed.");
+		}
 		
 		// create index
-		if (!indexFile.exists()) indexFile.createNewFile();
-		PrintWriter iWriter = new PrintWriter(new FileOutputStream(indexFile));
-		if (!histogramFile.exists()) histogramFile.createNewFile();
-		PrintWriter ihWriter = new PrintWriter(new FileOutputStream(histogramFile));
+		PrintWriter iWriter = new PrintWriter(new FileOutputStream(partialIndex));
+		PrintWriter ihWriter = new PrintWriter(new FileOutputStream(partialHistogram));
+		BinaryIndex.Writer bWriter = new BinaryIndex.Writer(partialBinary);
+		PrintWriter cWriter = new PrintWriter(new FileOutputStream(checkpointFile));
 		
 		// create directories to save thumbs
 		File bdir = new File(currentPath+File.separator+Retrieval.THUMBSDIR);
@@ -136,46 +341,92 @@ public class Indexer implements Runnable, Task {
 			System.out.println("Directory "+currentPath+File.separator+Retrieval.PREVIEWDIR+" created.\n");			
 		}
 		
-		Segmenter segmenter = new Segmenter();
-		for (int i = 0; i < fileList.length; i++) {
-			if (halt) break;
-			current++;
-			
-			File f = fileList[i];
-			
-			BufferedImage img = Utilities.loadImage(f.getAbsolutePath());
-			statMessage = currentPath+"\n";
-			statMessage += "indexing... "+(i+1)+"/"+fileList.length;
-			ObjectImage objectImage = segmenter.getKMedianRegions(img);
-			
-			// regions - separated by spaces
-			String descriptor = objectImage.getDescriptor();
-			//System.out.println(descriptor);
-			iWriter.println(descriptor);
-			iWriter.flush();
-			
-			// histogram - separated by commas...
-			// it contains both region and color histograms
-			double[] rh = objectImage.getHistogram();
-			descriptor = AMath.showVector(rh);
-			ihWriter.println(descriptor);
-			ihWriter.flush();
-			
-			Utilities.saveImage(segmenter.getSegmentedImage(), "png", 
-					  currentPath+File.separator+Retrieval.THUMBSDIR+
-					  File.separator+FileUtils.nameWOExtension(f.getName())+".png");
-			
-			// save also the color-clustered thumbnail for convenience
-			Utilities.saveImage(segmenter.getQuantizedImage(), "png", 
-					  currentPath+File.separator+Retrieval.THUMBSDIR+
-					  File.separator+FileUtils.nameWOExtension(f.getName())+"-ccat.png");			
+		this.currentPath = currentPath;
+		pipeline = new IndexPipeline(this, stageThreads);
+		if (halt) pipeline.abort();
+		boolean complete = false;
+		try {
+			pipeline.run(currentPath, entryList, iWriter, ihWriter, bWriter,
+						 cWriter, checkpointInterval);
+			complete = !halt;
+		} catch (InterruptedException e) {
+			halt = true;
+		} finally {
+			// keep what has been written for the next run
+			if (!complete) pipeline.checkpoint();
+			iWriter.close();
+			ihWriter.close();
+			cWriter.close();
+			if (!complete) bWriter.abort();
+		}
+		if (complete) {
+			bWriter.close();
+			// the index is not valid until the manifest is written again
+			Manifest.delete(currentPath);
+			binaryFile.delete();
+			FileUtils.replace(partialIndex, indexFile);
+			FileUtils.replace(partialHistogram, histogramFile);
+			FileUtils.replace(partialBinary, binaryFile);
+			manifest.write(currentPath);
+			checkpointFile.delete();
+			if (previous != null) removeThumbs(previous, manifest, currentPath);
 		}
-		
-		iWriter.close();
-		
-		
 		return true;
 	}
+	
+	/**
+	 * Brings the index of a single directory up to date.
+	 * Returns true if it has been rewritten.
+	 */
+	public boolean update(String dpath) throws IOException {
+		fileList = FileUtils.ls(dpath,filter);
+		return indexDir(dpath);
+	}
+	
+	/**
+	 * True if the file is the same that was indexed, and its thumbnails
+	 * are still there.
+	 */
+	boolean isUnchanged(Manifest.Entry old, Manifest.Entry now, String currentPath)
+		throws IOException {
+		if (old.size != now.size) return false;
+		if (old.mtime != now.mtime) {
+			// touched, but maybe not modified
+			if (!hashing || old.hash == null) return false;
+			now.hash = Manifest.hash(new File(currentPath, now.name));
+			if (!now.hash.equals(old.hash)) return false;
+		} else {
+			now.hash = old.hash;
+			if (hashing && now.hash == null) now.hash = Manifest.hash(new File(currentPath, now.name));
+		}
+		String location = new File(currentPath, now.name).getAbsolutePath();
+		return new File(ObjectImage.thumbFromLocation(location)).exists() &&
+			new File(ObjectImage.ccatFromLocation(location)).exists();
+	}
+	
+	/** Deletes the thumbnails of the files that are gone */
+	void removeThumbs(Manifest previous, Manifest manifest, String currentPath) {
+		HashSet<String> names = new HashSet<String>();
+		for (int i=0;i<manifest.size();i++) {
+			names.add(FileUtils.nameWOExtension(manifest.get(i).name));
+		}
+		for (int i=0;i<previous.size();i++) {
+			String name = previous.get(i).name;
+			// files with the same name but another extension share the thumbnails
+			if (manifest.indexOf(name) < 0 && !names.contains(FileUtils.nameWOExtension(name))) {
+				String location = new File(currentPath, name).getAbsolutePath();
+				new File(ObjectImage.thumbFromLocation(location)).delete();
+				new File(ObjectImage.ccatFromLocation(location)).delete();
+			}
+		}
+	}
+	
+	/** Called by the pipeline after writing the index lines of an image */
+	void written(IndexEntry entry) {
+		current++;
+		statMessage = currentPath+"\n";
+		statMessage += "indexing... "+(entry.seq+1)+"/"+fileList.length;
+	}
 
 	
 	public void run() {
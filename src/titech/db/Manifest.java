@@ -0,0 +1,297 @@
+//
+//  Manifest.java
+//  sketchRC
+//
+package titech.db;
+
+import java.io.*;
+import java.util.*;
+import java.security.*;
+
+import titech.file.*;
+
+/**
+ * Lists the files of a directory index, in the order of the index lines.
+ * For every file it keeps its size, modification time and optionally a
+ * content hash, to know whether it changed since it was indexed, and the
+ * offsets of its lines in Retrieval.INDEX_NAME and ImageRetrieval.INDEX_NAME.
+ * <p>
+ * It is saved in the directory as a text file: a version line, followed by
+ * a line per file with the tab-separated fields
+ * <pre>
+ *   size mtime hash descriptorOffset histogramOffset name
+ * </pre>
+ * where hash is "-" when it hasn't been computed.
+ */
+public class Manifest {
+	public static final String NAME = ".manifest";
+	/** Committed entries of an index being written, see Indexer */
+	public static final String CHECKPOINT_NAME = ".manifest.partial";
+	public static final int VERSION = 1;
+	static final String HEADER = "# sketchRC manifest ";
+	static final String NO_HASH = "-";
+
+	/** An indexed file */
+	public static class Entry {
+		public String name;
+		public long size;
+		public long mtime;
+		/** MD5 of the file contents, or null */
+		public String hash;
+		/** Offset of its line in Retrieval.INDEX_NAME */
+		public long descriptorOffset;
+		/** Offset of its line in ImageRetrieval.INDEX_NAME */
+		public long histogramOffset;
+
+		public Entry(String name, long size, long mtime) {
+			this.name = name;
+			this.size = size;
+			this.mtime = mtime;
+		}
+
+		public Entry(File f) {
+			this(f.getName(), f.length(), f.lastModified());
+		}
+
+		/** True if the file still has the indexed size and date */
+		public boolean sameStamp(Entry e) {
+			return size == e.size && mtime == e.mtime;
+		}
+	}
+
+	Vector<Entry> entries;
+	HashMap<String,Integer> index;
+
+	public Manifest() {
+		entries = new Vector<Entry>();
+		index = new HashMap<String,Integer>();
+	}
+
+	public void add(Entry e) {
+		index.put(e.name, entries.size());
+		entries.add(e);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public Entry get(int i) {
+		return entries.get(i);
+	}
+
+	/** Position of the file in the index, or -1 */
+	public int indexOf(String name) {
+		Integer i = index.get(name);
+		return (i == null) ? -1 : i;
+	}
+
+	/**
+	 * Reads the manifest of a directory.
+	 * Returns null if there is none or it has another version.
+	 */
+	public static Manifest read(String path) {
+		return read(new File(path+File.separator+NAME));
+	}
+
+	public static Manifest read(File f) {
+		if (!f.exists()) return null;
+		Manifest m = new Manifest();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(f));
+			try {
+				String line = reader.readLine();
+				if (line == null || !line.equals(HEADER+VERSION)) return null;
+				line = reader.readLine();
+				while (line != null) {
+					String next = reader.readLine();
+					try {
+						String[] fields = line.split("\t", 6);
+						Entry e = new Entry(fields[5], Long.parseLong(fields[0]),
+											Long.parseLong(fields[1]));
+						if (!fields[2].equals(NO_HASH)) e.hash = fields[2];
+						e.descriptorOffset = Long.parseLong(fields[3]);
+						e.histogramOffset = Long.parseLong(fields[4]);
+						m.add(e);
+					} catch (RuntimeException ex) {
+						// the last line of a checkpoint may be cut
+						if (next != null) throw ex;
+					}
+					line = next;
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			System.err.println("Manifest: "+f+": "+e);
+			return null;
+		}
+		return m;
+	}
+
+	/**
+	 * Saves the manifest in the directory. It is written to a temporary
+	 * file first, so a crash never leaves half a manifest.
+	 */
+	public void write(String path) throws IOException {
+		write(new File(path+File.separator+NAME));
+	}
+
+	public void write(File f) throws IOException {
+		File tmp = new File(f.getPath()+".tmp");
+		PrintWriter writer = new PrintWriter(new FileOutputStream(tmp));
+		writeHeader(writer);
+		for (Entry e : entries) write(writer, e);
+		writer.close();
+		if (writer.checkError()) {
+			tmp.delete();
+			throw new IOException("Manifest: can't write "+tmp);
+		}
+		FileUtils.replace(tmp, f);
+	}
+
+	static void writeHeader(PrintWriter writer) {
+		writer.println(HEADER+VERSION);
+	}
+	
+	/** Writes the line of an entry. A checkpoint is made by appending them. */
+	static void write(PrintWriter writer, Entry e) {
+		writer.println(e.size+"\t"+e.mtime+"\t"+
+					   (e.hash==null?NO_HASH:e.hash)+"\t"+
+					   e.descriptorOffset+"\t"+e.histogramOffset+"\t"+e.name);
+	}
+
+	public static void delete(String path) {
+		new File(path+File.separator+NAME).delete();
+	}
+
+	/**
+	 * Returns the lines of an index file, one per entry, found at the
+	 * descriptor (or histogram) offsets. Returns null if the offsets
+	 * don't match the file. Anything after the last entry is ignored,
+	 * like the uncommitted lines of a partial index.
+	 */
+	public String[] readLines(File indexFile, boolean histogram) throws IOException {
+		byte[] data = readBytes(indexFile);
+		String[] lines = new String[entries.size()];
+		for (int i=0;i<lines.length;i++) {
+			Entry e = entries.get(i);
+			long start = histogram ? e.histogramOffset : e.descriptorOffset;
+			if (start < 0 || start >= data.length) return null;
+			int end = lineEnd(data, (int)start);
+			if (end < 0) return null;
+			// lines are stored in order, each right after the previous one
+			if (i+1 < lines.length) {
+				Entry n = entries.get(i+1);
+				long nstart = histogram ? n.histogramOffset : n.descriptorOffset;
+				if (nstart != lineStart(data, end)) return null;
+			}
+			lines[i] = new String(data, (int)start, end-(int)start, "ISO-8859-1");
+		}
+		return lines;
+	}
+
+	/**
+	 * Makes a manifest for an index built before there were manifests, where
+	 * line i belongs to file i of the directory list. Returns null if the
+	 * number of lines doesn't match.
+	 */
+	public static Manifest fromIndex(File[] fileList, File indexFile, File histogramFile)
+		throws IOException {
+		long[] doffsets = lineOffsets(readBytes(indexFile));
+		long[] hoffsets = lineOffsets(readBytes(histogramFile));
+		if (doffsets.length != fileList.length || hoffsets.length != fileList.length)
+			return null;
+		Manifest m = new Manifest();
+		for (int i=0;i<fileList.length;i++) {
+			Entry e = new Entry(fileList[i]);
+			e.descriptorOffset = doffsets[i];
+			e.histogramOffset = hoffsets[i];
+			m.add(e);
+		}
+		return m;
+	}
+
+	/**
+	 * The manifest of the index of a directory. An index without manifest is
+	 * accepted if it has a line per file of the directory list. Returns null
+	 * if there is no complete index.
+	 */
+	public static Manifest forIndex(String path, FileFilter filter) throws IOException {
+		Manifest m = read(path);
+		if (m != null) return m;
+		File indexFile = new File(path+File.separator+Retrieval.INDEX_NAME);
+		File histogramFile = new File(path+File.separator+ImageRetrieval.INDEX_NAME);
+		if (!indexFile.exists() || !histogramFile.exists()) return null;
+		return fromIndex(FileUtils.ls(path, filter), indexFile, histogramFile);
+	}
+
+	/** MD5 of the file contents, in hexadecimal */
+	public static String hash(File f) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Manifest: "+e);
+		}
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] buffer = new byte[65536];
+			int n = in.read(buffer);
+			while (n >= 0) {
+				md.update(buffer, 0, n);
+				n = in.read(buffer);
+			}
+		} finally {
+			in.close();
+		}
+		byte[] digest = md.digest();
+		StringBuffer sb = new StringBuffer();
+		for (int i=0;i<digest.length;i++) {
+			sb.append(Integer.toHexString((digest[i] >> 4) & 0xf));
+			sb.append(Integer.toHexString(digest[i] & 0xf));
+		}
+		return sb.toString();
+	}
+
+	static byte[] readBytes(File f) throws IOException {
+		byte[] data = new byte[(int)f.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/** Position of the end of line after start, or -1 */
+	static int lineEnd(byte[] data, int start) {
+		for (int i=start;i<data.length;i++) {
+			if (data[i]=='\n' || data[i]=='\r') return i;
+		}
+		return -1;
+	}
+
+	/** Skips the line separator at end */
+	static int lineStart(byte[] data, int end) {
+		if (end < data.length && data[end]=='\r') end++;
+		if (end < data.length && data[end]=='\n') end++;
+		return end;
+	}
+
+	/** Offsets of the lines of a text file */
+	static long[] lineOffsets(byte[] data) {
+		Vector<Long> offsets = new Vector<Long>();
+		int start = 0;
+		while (start < data.length) {
+			int end = lineEnd(data, start);
+			if (end < 0) break; // the last line is incomplete
+			offsets.add((long)start);
+			start = lineStart(data, end);
+		}
+		long[] o = new long[offsets.size()];
+		for (int i=0;i<o.length;i++) o[i] = offsets.get(i);
+		return o;
+	}
+}
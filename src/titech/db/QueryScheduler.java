@@ -0,0 +1,75 @@
+//
+//  QueryScheduler.java
+//  sketchRC
+//
+package titech.db;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import titech.util.*;
+
+/**
+ * Runs the queries of a sketch. Every new query of a kind supersedes the
+ * ones of the same kind still running: their Tickets are cancelled, their
+ * scans stop (see QueryExecutor) and their results are never shown. So
+ * sketching fast doesn't pile up stale queries, and the UI thread never
+ * waits for them.
+ */
+public class QueryScheduler {
+	/** Query of the region of the last stroke, see Retrieval */
+	public static final int REGIONS = 0;
+	/** Query of the whole sketch, see ImageRetrieval */
+	public static final int IMAGES = 1;
+
+	/** A query, that stops when its ticket is cancelled */
+	public interface Query {
+		public void run(Cancellable ticket);
+	}
+
+	/** Generation of the newest query of every kind */
+	AtomicLong[] generations;
+	ExecutorService workers;
+
+	public QueryScheduler() {
+		generations = new AtomicLong[] {new AtomicLong(), new AtomicLong()};
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "query");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** Cancels the running queries of that kind and starts a new one */
+	public Ticket submit(int kind, final Query query) {
+		final Ticket ticket = new Ticket(kind, generations[kind].incrementAndGet());
+		workers.execute(new Runnable() {
+			public void run() {
+				if (!ticket.isCancelled()) query.run(ticket);
+			}
+		});
+		return ticket;
+	}
+
+	/** Cancels the running queries of that kind */
+	public void cancel(int kind) {
+		generations[kind].incrementAndGet();
+	}
+
+	/** Is cancelled when a newer query of the same kind is submitted */
+	public class Ticket implements Cancellable {
+		int kind;
+		long generation;
+
+		Ticket(int kind, long generation) {
+			this.kind = kind;
+			this.generation = generation;
+		}
+
+		public boolean isCancelled() {
+			return generations[kind].get() != generation;
+		}
+	}
+}
@@ -25,7 +25,7 @@ import titech.image.dsp.*;
  * This class should contain methods to read and access DB (local, remote..)
  * and thread to update the result components.
  */
-public class Retrieval implements Runnable {
+public class Retrieval implements Runnable, QueryScheduler.Query {
 	public static final String INDEX_NAME = ".blobs";
 	public static final String THUMBSDIR = ".bthumbs";
 	public static final String PREVIEWDIR = "thumbs";
@@ -37,8 +37,11 @@ public class Retrieval implements Runnable {
 	double regionThreshold = 1.0;
 	/** Maximum number of images to display */
 	public int maxImages = 10;	
+	/** Page of results to display, of maxImages each */
+	public int page = 0;
 	
-	Vector<ObjectImage> objectDB;
+	/** Regions of all the images of the DB, shared by all the Retrievals */
+	RegionStore regionStore;
 	Vector<ValuePair> retrieved;
 	/** List of directories and locations */
 	Vector<String> locations;
@@ -62,7 +65,7 @@ public class Retrieval implements Runnable {
 	Dimension componentSize;
 	
 	public Retrieval(Region query) {
-		objectDB = new Vector<ObjectImage>();
+		regionStore = new RegionStore();
 		retrieved = new Vector<ValuePair>();
 		locations = new Vector<String>();
 		this.query = query;
@@ -110,12 +113,12 @@ public class Retrieval implements Runnable {
 		return locations;
 	}
 	
-	public Vector<ObjectImage> getObjectDB() {
-		return objectDB;
+	public RegionStore getRegionStore() {
+		return regionStore;
 	}
 	
-	public void setObjectDB(Vector<ObjectImage> objectDB) {
-		this.objectDB = objectDB;
+	public void setRegionStore(RegionStore regionStore) {
+		this.regionStore = regionStore;
 	}
 	
 	public void addLocalDB(String path) throws java.io.FileNotFoundException,
@@ -123,63 +126,91 @@ public class Retrieval implements Runnable {
 		File indexFile = new File(path+File.separator+INDEX_NAME);
 
 		System.out.println(path);
-		File[] fileList = FileUtils.ls(path,filter);
-		// we assume that the index is up to date...
+		// line i of the index belongs to file i of the manifest
+		Manifest manifest = Manifest.forIndex(path,filter);
+		if (manifest == null) {
+			print("Retrieval: no complete index in "+path);
+			return;
+		}
 		
-		BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+		BinaryIndex bindex = BinaryIndex.open(path);
+		if (bindex != null && bindex.size() == manifest.size()) {
+			// straight from the mapping into the store
+			for (int i = 0; i < manifest.size(); i++) {
+				String location = new File(path, manifest.get(i).name).getAbsolutePath();
+				regionStore.put(location, bindex.getDescriptor(i));
+			}
+		} else { // text index
+			String[] descriptors = manifest.readLines(indexFile, false);
+			if (descriptors == null) {
+				print("Retrieval: the index of "+path+" is incomplete");
+				return;
+			}
 				
-		for (int i = 0; i < fileList.length; i++) {
-			File f = fileList[i];
-			String descriptor = reader.readLine();
-			//System.out.println(f+": "+descriptor);
-			ObjectImage obi = new ObjectImage(descriptor);
-			obi.setLocation(f.getAbsolutePath());
-			objectDB.add(obi);
+			for (int i = 0; i < descriptors.length; i++) {
+				File f = new File(path, manifest.get(i).name);
+				//System.out.println(f+": "+descriptors[i]);
+				ObjectImage obi = new ObjectImage(descriptors[i]);
+				obi.setLocation(f.getAbsolutePath());
+				regionStore.put(obi);
+			}
 		}
-		
-		reader.close();
 		locations.add(path);
 		
-		print("Retrieval: "+objectDB.size()+" images in the DB.");
+		print("Retrieval: "+regionStore.size()+" images in the DB.");
+	}
+	
+	/**
+	 * Adds an image to the DB, or replaces the one with the same
+	 * location. See IndexWatcher.
+	 */
+	public void putImage(ObjectImage obi) {
+		regionStore.put(obi);
 	}
 	
-	/** Retrieves a list of Regions from the objectDB, sorted by distance.
+	/** Like putImage(ObjectImage), from the record of a BinaryIndex */
+	public void putImage(String location, java.nio.ByteBuffer descriptor) {
+		regionStore.put(location, descriptor);
+	}
+	
+	/** Removes the image with the given location from the DB */
+	public void removeImage(String location) {
+		regionStore.remove(location);
+	}
+	
+	/** Retrieves a list of Regions from the DB, sorted by distance.
+	  * Only the ones up to the current page are kept.
 	  * The Vector returned uses ValuePair, where
 	  *   - index:  image number
 	  *   - value:  distance to the queried object
 	  *   - ilabel: index of the matching region (== palette index + 1)
 	  *   - label:  location of the segmented image
 	  */
-	@SuppressWarnings("unchecked")
 	public Vector<ValuePair> retrieveRegions(Region query) {
-		retrieved.clear();
-		
+		return retrieveRegions(query, null);
+	}
+	
+	/** The same, but it stops with a CancellationException when the ticket is cancelled */
+	public Vector<ValuePair> retrieveRegions(Region query, Cancellable ticket) {
 		String keyword = (textField==null)?"":textField.getText();
 
-		for (int i = 0; i < objectDB.size(); i++) {
-			ObjectImage obi = objectDB.get(i);
-			// check first keywords
-			if (keyword=="" || obi.getLocation().contains(keyword)) {
-				obi.setWeights(posW, volW, colW, oriW);
-				int index = obi.minDistanceRegion(query);
-				if (obi.getMinDist()<regionThreshold) {
-					retrieved.add(new ValuePair(i, obi.getMinDist(), 
-										index, obi.getLocation()));
-				}
-			} // else no matching keyword
-		}
-		Collections.sort(retrieved);
+		double[] weights = new double[] {posW, volW, colW, oriW};
+		TopK top = new TopK((page+1)*maxImages);
+		// only the images that match the keywords are scanned
+		retrieved = regionStore.search(query, weights, keyword, regionThreshold, top, ticket);
 		
 		return retrieved;
 	}
 	
 	public void cloneFrom(Retrieval ret) {
-		this.setObjectDB(ret.getObjectDB());
+		this.setRegionStore(ret.getRegionStore());
 		this.setSJPanel(ret.getSJPanel());
 		this.colW = ret.colW;
 		this.posW = ret.posW;
 		this.volW = ret.volW;
 		this.oriW = ret.oriW;
+		this.maxImages = ret.maxImages;
+		this.page = ret.page;
 		this.componentSize = ret.componentSize;
 		this.log = ret.log;
 		this.textField = ret.textField;
@@ -196,10 +227,19 @@ public class Retrieval implements Runnable {
 	 * We should start one thread for every Region to be retrieved. 
 	 */
 	public void run() {
+		run(null);
+	}
+	
+	/**
+	 * The same, as a query of a QueryScheduler: it stops as soon as the
+	 * ticket is cancelled, and then the results are not shown.
+	 */
+	public void run(final Cancellable ticket) {
 		try {
 			// wait for a query
 			int timeout=0;
-			while (((query == null) || (objectDB.size()==0))&&timeout<TIMEOUT){
+			while (((query == null) || (regionStore.size()==0))&&timeout<TIMEOUT){
+				if (ticket != null && ticket.isCancelled()) return;
 				Thread.sleep(500); //half second
 				timeout++;
 			}
@@ -207,7 +247,7 @@ public class Retrieval implements Runnable {
 			if (timeout < TIMEOUT) {
 				
 				long time = System.currentTimeMillis();
-				retrieveRegions(query);
+				retrieveRegions(query, ticket);
 				time = System.currentTimeMillis() - time;
 				double t = (double) time / 1000.0;
 				print("Object query time: "+t+" secs.");
@@ -224,13 +264,14 @@ public class Retrieval implements Runnable {
 				closeButton.addActionListener(busyListener);
 				srpanel.add(closeButton);
 				
-				int i = 0;
+				int i = page*maxImages;
 				String minmax = "";
 				double distance = 0;
-				while (i<maxImages && i<retrieved.size()) {
+				while (i<(page+1)*maxImages && i<retrieved.size()) {
+					if (ticket != null && ticket.isCancelled()) return;
 					ValuePair vp = retrieved.get(i);
 					distance = vp.value;
-					if (i==0) minmax+=distance;
+					if (i==page*maxImages) minmax+=distance;
 					i++;					
 					if (sjpanel != null) {
 						BufferedImage bim = Utilities.loadImage(
@@ -255,16 +296,26 @@ public class Retrieval implements Runnable {
 				minmax+=", "+distance;
 				print("Region distance interval: ("+minmax+")");
 				if (sjpanel != null) {
-					sjpanel.add(scroller);
-					sjpanel.getTopLevelAncestor().validate();	
+					final JScrollPane row = scroller;
+					// new queries are submitted from the UI thread too, so
+					// a cancelled one can't get in after this check
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							if (ticket != null && ticket.isCancelled()) return;
+							sjpanel.add(row);
+							sjpanel.getTopLevelAncestor().validate();
+						}
+					});
 				}
 			} else {
 				String error = "";
-				if (objectDB.size()==0) error+="No DB. ";
+				if (regionStore.size()==0) error+="No DB. ";
 				if (query == null) error+="No query object. ";
 				print("Retrieval thread: timeout! "+error);
 			}
 		
+		} catch (java.util.concurrent.CancellationException exc) {
+			// superseded by a newer query
 		} catch (Exception exc) {
 			print("Retrieval thread: "+exc);
 		}
@@ -122,6 +122,21 @@ public class FileUtils extends java.lang.Object
 		return file.substring(0,pos);
 	}
 	
+	/**
+	 * Renames from to to, replacing it. The rename is atomic if the file
+	 * system can do it.
+	 */
+	public static void replace(File from, File to) throws IOException {
+		try {
+			java.nio.file.Files.move(from.toPath(), to.toPath(),
+									 java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+									 java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+		} catch (java.nio.file.AtomicMoveNotSupportedException e) {
+			java.nio.file.Files.move(from.toPath(), to.toPath(),
+									 java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
 	public static void main(String[] args) {
 		File[] list = ls(args[0],null);
 		for (int i=0;i<list.length;i++) {
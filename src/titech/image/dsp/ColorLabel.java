@@ -10,39 +10,62 @@ package titech.image.dsp;
 import java.awt.*;
 import java.awt.image.*;
 import java.util.Vector;
+import java.util.concurrent.CancellationException;
 import titech.util.*;
 
 public class ColorLabel {
 	
 	private int nlabels;
-	private int[] equivalences = null;
+	/** Labels, in rows */
+	int[] labels;
+	/** Labels as [x][y], made when asked */
 	int[][] labeled;
 	int width;
 	int height;
 	
+	/** Provisional label equivalences, see find() */
+	private int[] parent;
+	
 	/**
 	 * Source doesn't need to be an indexedImage, since we use getRGB method to compare colors.
 	 */
 	public ColorLabel(BufferedImage indexedImage) {
-		labeled=colorLabel(indexedImage);
+		this(indexedImage, null, 1);
 	}
 	
 	public ColorLabel(BufferedImage indexedImage, int color) {
-		labeled=colorLabel(indexedImage, new Color(color));
+		this(indexedImage, new Color(color), 1);
+	}
+	
+	/**
+	 * Labels the image in nthreads horizontal strips at the same time, and
+	 * then joins the regions that cross from one strip to the next one.
+	 * The labels are the same as with one thread.
+	 *
+	 * @param  background  If not null, it doesn't label pixels of this color
+	 */
+	public ColorLabel(BufferedImage indexedImage, Color background, int nthreads) {
+		labels = colorLabel(indexedImage, background, nthreads);
 	}
 	
 	public int getNLabels() {
 		return nlabels;
 	}
 	
-	public int[][] getLabeledMatrix() {
-		return labeled;
+	/** The labels, in rows: the label of (x,y) is at y*width+x */
+	public int[] getLabels() {
+		return labels;
 	}
 	
-	private int[][] colorLabel(BufferedImage src) {
-		return colorLabel(src, null);
+	public int[][] getLabeledMatrix() {
+		if (labeled == null) {
+			labeled = new int[width][height];
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) labeled[x][y] = labels[y*width+x];
+			}
+		}
+		return labeled;
 	}
-
 	
 	/**
 	 * Labels an indexed image.
@@ -55,84 +78,69 @@ public class ColorLabel {
 	 *</ul>
 	 * <p>
 	 * The original algorithm for binary images can be found in: <a href="http://www.dai.ed.ac.uk/HIPR2/label.htm">Connected Components Algorithm</a>
+	 * <p>
+	 * The equivalences are kept in a union-find forest, where the root of a
+	 * set is its smallest label. Labels are then renumbered in order, so
+	 * regions are numbered in the order of their first pixel. If the thread
+	 * is interrupted while waiting for the strips, it throws a
+	 * CancellationException.
 	 *
 	 * @param  img  Input image, supposed to be indexed. Otherwise, only red channel is used.
 	 * @param  bgColor  If not null, it doesn't label pixels of color == bgColor
-	 * @return      dst.
+	 * @return      dst, in rows.
 	 */
-	private int[][] colorLabel(BufferedImage src, Color background) {
+	private int[] colorLabel(BufferedImage src, Color background, int nthreads) {
 		width = src.getWidth();
 		height = src.getHeight();
 		
-		
-		int[][] dst = new int[width][height];
-		// neighbours
-		int[] nb = new int[4];
-		// neighbours' labels
-		int[] nbl = new int[4];
-		
-		equivalences = new int[width * height];
-		// no more groups!
-		// equivalents to themselves
-		for (int i = 0; i < equivalences.length; i++) {
-			equivalences[i] = i;
-		}
+		int[] colors = getColors(src);
+		int[] dst = new int[width * height];
+		// label 0 and, at worst, a new one per pixel
+		parent = new int[width * height + 1];
 		
 		int bgColor = 0;
 		if (background!=null) {
 			bgColor = background.getRGB();
 		}
-		// the first label
-		int label = 1;
-		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				int color = src.getRGB(x,y);
-				if (background!=null && bgColor == color) {
-					dst[x][y]=0;
-				} else {
-					// for all colors (including black) -- no background!
-					nb[0] = getSample(src, x - 1, y);
-					nb[1] = getSample(src, x, y - 1);
-					nb[2] = getSample(src, x - 1, y - 1);
-					nb[3] = getSample(src, x + 1, y - 1);
-					
-					nbl[0] = getSample(dst, x - 1, y);
-					nbl[1] = getSample(dst, x, y - 1);
-					nbl[2] = getSample(dst, x - 1, y - 1);
-					nbl[3] = getSample(dst, x + 1, y - 1);
-					
-					if (nb[0] != color && nb[1] != color && nb[2] != color && nb[3] != color) {
-						dst[x][y] = label++;
-					} else {
-						// count neighbours with the same color
-						int count = 0;
-						int found = -1;
-						for (int i = 0; i < 4; i++) {
-							if (nb[i] == color) {
-								count++;
-								found = i;
-							}
-						}
-						dst[x][y] = nbl[found];
-						if (count > 1) {
-							for (int i = 0; i < 4; i++) {
-								if (nb[i] == color && nbl[i] != dst[x][y]) {
-									//System.out.println("("+x+","+y+")="+nbl[i]+"="+dst[x][y]);
-									associate(nbl[i], dst[x][y]);
-								}
-							}
-						}
-					}					
-				} // end if background 
-				
+		
+		// the strips, the labels of each one start after its first pixel
+		nthreads = Math.max(1, Math.min(nthreads, height));
+		int[] y0 = new int[nthreads+1];
+		int[] next = new int[nthreads];
+		for (int t = 0; t <= nthreads; t++) y0[t] = t * height / nthreads;
+		Thread[] threads = new Thread[nthreads];
+		Strip[] strips = new Strip[nthreads];
+		for (int t = 0; t < nthreads; t++) {
+			strips[t] = new Strip(colors, dst, background != null, bgColor, y0[t], y0[t+1]);
+			if (t == nthreads-1) {
+				strips[t].run();
+			} else {
+				threads[t] = new Thread(strips[t], "ColorLabel-"+t);
+				threads[t].start();
 			}
 		}
+		try {
+			for (int t = 0; t < nthreads-1; t++) threads[t].join();
+		} catch (InterruptedException exc) {
+			// the strips still running would leave the result half done
+			Thread.currentThread().interrupt();
+			throw new CancellationException("ColorLabel: interrupted");
+		}
 		
-		//reduce labels ie 76=23=22=3 -> 76=3
-		//done in reverse order to preserve sorting
-		for (int i = label - 1; i > 0; i--) {
-			equivalences[i] = reduce(i);
-			//System.out.println("equiv: "+i+"="+equivalences[i]);
+		// join the regions of the first row of every strip with the row above
+		for (int t = 1; t < nthreads; t++) {
+			int y = y0[t];
+			for (int x = 0; x < width; x++) {
+				int p = y * width + x;
+				int color = colors[p];
+				if (background!=null && bgColor == color) continue;
+				for (int dx = -1; dx <= 1; dx++) {
+					// outside of the image the color and the label are 0
+					boolean inside = x+dx >= 0 && x+dx < width;
+					int q = p - width + dx;
+					if ((inside ? colors[q] : 0) == color) union(inside ? dst[q] : 0, dst[p]);
+				}
+			}
 		}
 		
 		/*
@@ -141,69 +149,144 @@ public class ColorLabel {
 		 *  space eg in the above, the labels 3 and 4 are not used instead it jumps
 		 *  to 5.
 		 */
-		int condensed[] = new int[label];
-		// cant be more labels
-		//System.err.println("labels: "+label);
-		int count = 0;
-		for (int i = 0; i < label; i++) {
-			if (i == equivalences[i]) {
-				condensed[i] = count++;
+		for (int t = 0; t < nthreads; t++) {
+			for (int i = strips[t].first; i < strips[t].label; i++) parent[i] = find(i);
+		}
+		// roots get their new label, negated, the others keep their root
+		int count = 1; // the background
+		for (int t = 0; t < nthreads; t++) {
+			for (int i = strips[t].first; i < strips[t].label; i++) {
+				if (parent[i] == i) parent[i] = -(count++);
 			}
 		}
 		// Record the number of labels
 		nlabels = count;
 		// that includes the background
 		
-		
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int i = condensed[equivalences[dst[x][y]]];
-				dst[x][y]=i;
+		for (int p = 0; p < dst.length; p++) {
+			int l = dst[p];
+			if (l != 0) {
+				l = parent[l];
+				dst[p] = (l < 0) ? -l : -parent[l];
 			}
 		}
 		
-		equivalences = null;
+		parent = null;
 		
 		return dst;
 	}
 	
-	private int getSample(BufferedImage src, int x, int y) {
-		int w = src.getWidth();
-		int h = src.getHeight();
-		return ((x < 0) || (x >= w) || (y < 0) || (y >= h)) ? 0 : src.getRGB(x,y);
+	/** The labeling of the rows [y0, y1) */
+	class Strip implements Runnable {
+		int[] colors, dst;
+		boolean hasBackground;
+		int bgColor, y0, y1;
+		/** First label of the strip, and the next new label */
+		int first, label;
+		
+		Strip(int[] colors, int[] dst, boolean hasBackground, int bgColor, int y0, int y1) {
+			this.colors = colors;
+			this.dst = dst;
+			this.hasBackground = hasBackground;
+			this.bgColor = bgColor;
+			this.y0 = y0;
+			this.y1 = y1;
+			first = y0 * width + 1;
+			label = first;
+		}
+		
+		public void run() {
+			for (int i = first; i <= y1 * width; i++) parent[i] = i;
+			// neighbours
+			int[] nb = new int[4];
+			// neighbours' labels
+			int[] nbl = new int[4];
+			for (int y = y0; y < y1; y++) {
+				// the row above the strip is joined afterwards
+				boolean top = (y == y0 && y0 > 0);
+				for (int x = 0; x < width; x++) {
+					int p = y * width + x;
+					int color = colors[p];
+					if (hasBackground && bgColor == color) {
+						dst[p]=0;
+						continue;
+					}
+					// for all colors (including black) -- no background!
+					// outside of the image the color and the label are 0
+					boolean left = x > 0, right = x < width-1, up = y > 0 && !top;
+					nb[0] = left ? colors[p-1] : 0;
+					nbl[0] = left ? dst[p-1] : 0;
+					if (top) {
+						// never equal to the color
+						nb[1] = nb[2] = nb[3] = ~color;
+					} else {
+						nb[1] = up ? colors[p-width] : 0;
+						nb[2] = (up && left) ? colors[p-width-1] : 0;
+						nb[3] = (up && right) ? colors[p-width+1] : 0;
+						nbl[1] = up ? dst[p-width] : 0;
+						nbl[2] = (up && left) ? dst[p-width-1] : 0;
+						nbl[3] = (up && right) ? dst[p-width+1] : 0;
+					}
+					
+					if (nb[0] != color && nb[1] != color && nb[2] != color && nb[3] != color) {
+						dst[p] = label++;
+					} else {
+						// count neighbours with the same color
+						int count = 0;
+						int found = -1;
+						for (int i = 0; i < 4; i++) {
+							if (nb[i] == color) {
+								count++;
+								found = i;
+							}
+						}
+						dst[p] = nbl[found];
+						if (count > 1) {
+							for (int i = 0; i < 4; i++) {
+								if (nb[i] == color && nbl[i] != dst[p]) {
+									union(nbl[i], dst[p]);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
 	}
 	
-	private int getSample(int[][] src, int x, int y) {
-		int w = src.length;
-		int h = src[0].length;
-		return ((x < 0) || (x >= w) || (y < 0) || (y >= h)) ? 0 : src[x][y];
+	/** The colors of the image, in rows, as getRGB() */
+	private int[] getColors(BufferedImage src) {
+		int w = src.getWidth();
+		int h = src.getHeight();
+		ColorModel cm = src.getColorModel();
+		if (!(cm instanceof IndexColorModel)) {
+			return src.getRGB(0, 0, w, h, null, 0, w);
+		}
+		// index to color, without asking the color model pixel by pixel
+		IndexColorModel icm = (IndexColorModel)cm;
+		int[] rgbs = new int[icm.getMapSize()];
+		icm.getRGBs(rgbs);
+		int[] colors = new int[w * h];
+		src.getRaster().getSamples(0, 0, w, h, 0, colors);
+		for (int i = 0; i < colors.length; i++) colors[i] = rgbs[colors[i]];
+		return colors;
 	}
 	
-	
-	private int reduce(int a) {
-		
-		if (equivalences[a] == a) {
-			return a;
-		} else {
-			return reduce(equivalences[a]);
+	/** The root of the set of a label, halving the path on the way */
+	private int find(int a) {
+		while (parent[a] != a) {
+			parent[a] = parent[parent[a]];
+			a = parent[a];
 		}
+		return a;
 	}
 	
-	
-	private void associate(int a, int b) {
-		if (a > b) {
-			associate(b, a);
-			return;
-		}
-		if (a == b || equivalences[b] == a) {
-			return;
-		}
-		if (equivalences[b] == b) {
-			equivalences[b] = a;
-		} else {
-			associate(equivalences[b], a);
-			equivalences[b] = a;
-		}
+	/** Joins the sets of two labels, the smallest label becomes the root */
+	private void union(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a < b) parent[b] = a;
+		else if (b < a) parent[a] = b;
 	}
 	
 	BufferedImage getAsImage(Vector regions, int[] equiv) {
@@ -226,10 +309,9 @@ public class ColorLabel {
 													height, colormap);
 		
 		WritableRaster wrasta = outImage.getRaster();
-		for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++)
-				wrasta.setSample(i, j, 0, equiv[labeled[i][j]]);
-		}
+		int[] samples = new int[width * height];
+		for (int p = 0; p < samples.length; p++) samples[p] = equiv[labels[p]];
+		wrasta.setSamples(0, 0, width, height, 0, samples);
 		
 		return outImage;
 	}
@@ -249,12 +331,9 @@ public class ColorLabel {
 															  height, colormap);
 		
 		WritableRaster wrasta = outImage.getRaster();
-		for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-				int l = labeled[i][j];
-				wrasta.setSample(i, j, 0, l>=255?255:l);
-			}
-		}
+		int[] samples = new int[width * height];
+		for (int p = 0; p < samples.length; p++) samples[p] = Math.min(labels[p], 255);
+		wrasta.setSamples(0, 0, width, height, 0, samples);
 		
 		return outImage;
 		
@@ -0,0 +1,115 @@
+//
+//  ColorTables.java
+//  sketchRC
+//
+package titech.image.dsp;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+import titech.util.*;
+import titech.image.math.*;
+
+/**
+ * The color lookup tables of the resources directory. They are loaded once,
+ * the first time they are needed, and shared by all the Segmenters and
+ * ObjectImages. Nobody should modify them.
+ */
+public class ColorTables {
+	/** Color category of every 15-bit color, see Segmenter.colorCategory() */
+	final byte[] catLut;
+	/** L*a*b* of every 15-bit color, 3 floats per color */
+	final float[] labLut;
+	/** Colors of the categories */
+	final byte[][] univPal;
+	/** L*a*b* of the bins of the color histogram, see ObjectImage */
+	final float[][] histogramPalette;
+	/** Bins of the color histogram by 15-bit colors, see histogramBin() */
+	final AtomicReferenceArray<byte[]> histogramCells;
+	final byte[][] uniformCells;
+
+	private ColorTables() throws IOException {
+		catLut = new byte[32768]; // size of catlut
+		readFully("/resources/cc14.raw", catLut);
+
+		// 15-bit palette, 32 colors per band, 3 bands, big-endian floats
+		byte[] raw = new byte[32768*3*4];
+		readFully("/resources/lab15bit.raw", raw);
+		labLut = new float[32768*3];
+		ByteBuffer.wrap(raw).asFloatBuffer().get(labLut);
+
+		InputStream is = getClass().getResourceAsStream("/resources/universalEx.palette");
+		univPal = Utilities.loadPalette(is);
+		is.close();
+
+		is = getClass().getResourceAsStream("/resources/histogram.palette");
+		histogramPalette = Utilities.loadPaletteLab(is);
+		is.close();
+
+		histogramCells = new AtomicReferenceArray<byte[]>(32768);
+		uniformCells = new byte[histogramPalette.length][];
+		for (int i=0;i<uniformCells.length;i++) uniformCells[i] = new byte[] {(byte)i};
+	}
+
+	/**
+	 * The bin of the color histogram of a color: the closest color of
+	 * histogramPalette to its L*a*b*.
+	 * <p>
+	 * The first time a 15-bit color is seen, the bins of its 512 24-bit
+	 * colors are computed. Most of the times they are all the same, and
+	 * then the bin is kept alone. Otherwise the cell keeps the 512 bins.
+	 */
+	public int histogramBin(int rgb) {
+		int r = (rgb>>16)&0xFF, g = (rgb>>8)&0xFF, b = rgb&0xFF;
+		// divide by 8 (15-bit color palette)
+		int c = (r>>3)*32*32 + (g>>3)*32 + (b>>3);
+		byte[] bins = histogramCells.get(c);
+		if (bins == null) {
+			bins = histogramCell(r>>3, g>>3, b>>3);
+			histogramCells.set(c, bins);
+		}
+		if (bins.length == 1) return bins[0];
+		return bins[(r&7)*64 + (g&7)*8 + (b&7)];
+	}
+
+	byte[] histogramCell(int r, int g, int b) {
+		byte[] bins = new byte[512];
+		boolean uniform = true;
+		for (int k=0;k<512;k++) {
+			int rgb = ((r*8 + (k>>6))<<16) | ((g*8 + ((k>>3)&7))<<8) | (b*8 + (k&7));
+			bins[k] = (byte)AMath.findMin(Utilities.sRGBtoLab(rgb), histogramPalette);
+			if (bins[k] != bins[0]) uniform = false;
+		}
+		return uniform ? uniformCells[bins[0]] : bins;
+	}
+
+	private void readFully(String resource, byte[] data) throws IOException {
+		InputStream is = getClass().getResourceAsStream(resource);
+		if (is == null) throw new FileNotFoundException(resource);
+		DataInputStream din = new DataInputStream(new BufferedInputStream(is));
+		try {
+			din.readFully(data);
+		} finally {
+			din.close();
+		}
+	}
+
+	/** Loaded by the class loader the first time get() is called */
+	private static class Holder {
+		static final ColorTables TABLES = load();
+
+		static ColorTables load() {
+			try {
+				return new ColorTables();
+			} catch (Exception e) {
+				System.err.println("ColorTables: Couldn't load resources! "+e);
+				return null;
+			}
+		}
+	}
+
+	/** The shared tables, or null if the resources are missing */
+	public static ColorTables get() {
+		return Holder.TABLES;
+	}
+}
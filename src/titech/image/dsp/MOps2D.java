@@ -10,6 +10,7 @@ package titech.image.dsp;
 import java.awt.*;
 import java.awt.image.*;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import titech.image.math.*;
 
 /** Morphological Operations in BufferedImages (Java2D) */
@@ -1194,15 +1195,124 @@ public class MOps2D {
 	 * @return          An indexed image that has been filtered.
 	 */	
 	public static BufferedImage maxPercentil(int n, BufferedImage img, int size) {
+		return maxPercentil(n, img, size, 1);
+	}
+	
+	/**
+	 * Same as maxPercentil(n, img, size), computed by nthreads threads, each
+	 * one a band of rows.
+	 * <p>
+	 * Every column keeps the votes of its size pixels of the window. When
+	 * the window goes down a row, each column adds a pixel and removes
+	 * another. Along the row, the votes of the window add the entering
+	 * column and remove the leaving one. So the cost of a pixel depends on
+	 * n, not on size. The most voted is the first one in case of a tie,
+	 * like before. If the thread is interrupted while waiting for the
+	 * bands, it throws a CancellationException.
+	 */
+	public static BufferedImage maxPercentil(int n, BufferedImage img, int size, int nthreads) {
 		int w = img.getWidth();
 		int h = img.getHeight();
 		BufferedImage result = new BufferedImage(w, h,
 											  BufferedImage.TYPE_BYTE_INDEXED,
 											  (IndexColorModel)img.getColorModel());
+		if (n > 256 || n < 1) return maxPercentilScan(n, img, size, result);
+		
+		// labels, n for the samples that don't vote
+		Raster r = img.getData();
+		byte[] labels = new byte[w*h];
+		int[] row = new int[w];
+		for (int j=0;j<h;j++) {
+			r.getSamples(0, j, w, 1, 0, row);
+			for (int i=0;i<w;i++) {
+				int sample = row[i];
+				labels[j*w+i] = (byte)((sample>=0 && sample<n) ? sample : n);
+			}
+		}
+		
+		byte[] out = new byte[w*h];
+		nthreads = Math.max(1, Math.min(nthreads, h));
+		Thread[] threads = new Thread[nthreads];
+		for (int t=0;t<nthreads;t++) {
+			PercentilBand band = new PercentilBand(n, labels, out, w, h, size >> 1,
+												   t*h/nthreads, (t+1)*h/nthreads);
+			if (t == nthreads-1) {
+				band.run();
+			} else {
+				threads[t] = new Thread(band, "maxPercentil-"+t);
+				threads[t].start();
+			}
+		}
+		try {
+			for (int t=0;t<nthreads-1;t++) threads[t].join();
+		} catch (InterruptedException exc) {
+			// the bands still running would leave the result half done
+			Thread.currentThread().interrupt();
+			throw new CancellationException("MOps2D: interrupted");
+		}
+		result.getRaster().setDataElements(0, 0, w, h, out);
+		return result;
+	}
+	
+	/** The rows [j0, j1) of maxPercentil() */
+	static class PercentilBand implements Runnable {
+		int n, w, h, hf, j0, j1;
+		byte[] labels, out;
+		
+		PercentilBand(int n, byte[] labels, byte[] out, int w, int h, int hf, int j0, int j1) {
+			this.n = n; this.labels = labels; this.out = out;
+			this.w = w; this.h = h; this.hf = hf; this.j0 = j0; this.j1 = j1;
+		}
+		
+		public void run() {
+			// votes of every column, one more for the samples that don't vote
+			int m = n+1;
+			int[] columns = new int[w*m];
+			int[] votes = new int[m];
+			for (int l=Math.max(0,j0-hf);l<=Math.min(j0+hf,h-1);l++) addRow(columns, l, 1);
+			
+			for (int j=j0;j<j1;j++) {
+				if (j > j0) {
+					if (j-hf-1 >= 0) addRow(columns, j-hf-1, -1);
+					if (j+hf < h) addRow(columns, j+hf, 1);
+				}
+				for (int v=0;v<m;v++) votes[v]=0;
+				for (int k=0;k<=Math.min(hf,w-1);k++) addColumn(votes, columns, k, 1);
+				for (int i=0;i<w;i++) {
+					// select most voted
+					int index = 0, value = votes[0];
+					for (int v=1;v<n;v++) {
+						if (votes[v]>value) {
+							index = v;
+							value = votes[v];
+						}
+					}
+					out[j*w+i] = (byte)index;
+					if (i-hf >= 0) addColumn(votes, columns, i-hf, -1);
+					if (i+hf+1 < w) addColumn(votes, columns, i+hf+1, 1);
+				}
+			}
+		}
+		
+		void addRow(int[] columns, int l, int sign) {
+			int m = n+1;
+			for (int k=0;k<w;k++) columns[k*m + (labels[l*w+k]&0xFF)] += sign;
+		}
+		
+		void addColumn(int[] votes, int[] columns, int k, int sign) {
+			int m = n+1;
+			for (int v=0;v<m;v++) votes[v] += sign*columns[k*m+v];
+		}
+	}
+	
+	/** maxPercentil() counting the whole window of every pixel */
+	static BufferedImage maxPercentilScan(int n, BufferedImage img, int size, BufferedImage result) {
+		int w = img.getWidth();
+		int h = img.getHeight();
 		Raster r = img.getData();
 		WritableRaster wr = result.getRaster();
 		int hf = size >> 1;
-		int[] votes = new int[n];
+		int[] votes = new int[Math.max(n,1)];
 		for (int j=0;j<h;j++) {
 			for (int i=0;i<w;i++) {
 				for (int v=0;v<votes.length;v++) votes[v]=0;
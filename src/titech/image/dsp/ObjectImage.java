@@ -44,6 +44,9 @@ public class ObjectImage {
 	
 	private int nlabels;
 	private float[][] labmap;
+	private ColorTables tables;
+	/** Pixels of every bin of the color histogram, see updateRegions() */
+	private int[] colorCounts;
 
 	private int[] equivalences;
 	BufferedImage labeledImage;
@@ -56,12 +59,9 @@ public class ObjectImage {
 		original = null;
 		histogram = new double[RHISTO_SIZE+CHISTO_SIZE];
 		
-		try {
-			InputStream stream = this.getClass().getResourceAsStream("/resources/histogram.palette");
-			labmap = Utilities.loadPaletteLab(stream);
-		} catch (Exception ex) {
-			System.err.println("ObjectImage: "+ex);
-		}
+		// shared by all the images
+		tables = ColorTables.get();
+		if (tables != null) labmap = tables.histogramPalette;
 	}
 
 	/**
@@ -100,6 +100,35 @@ public class ObjectImage {
 		}
 	}
 
+	/**
+	 * Reads the binary form of the descriptor, see putDescriptor(),
+	 * from the current position of the buffer.
+	 */
+	public ObjectImage(java.nio.ByteBuffer buf) {
+		regions = new Vector<titech.image.dsp.Region>();
+		original = null;
+		
+		int nregions = buf.getInt();
+		contourCount = buf.getDouble();
+		pwdistances = new double[4];
+		for (int k=0;k<4;k++) pwdistances[k]=buf.getDouble();
+		
+		// region 0 is the background
+		for (int i=1;i<nregions;i++) {
+			titech.image.dsp.Region region = new titech.image.dsp.Region();
+			region.setColorCat(buf.getInt());
+			regions.add(region);
+		}
+		
+		double[] features = new double[NFEATURES];
+		for (int i=1;i<nregions;i++) {
+			for (int f=0;f<NFEATURES;f++) {
+				features[f]=buf.getDouble();
+			}
+			regions.get(i-1).setFeatures(features);
+		}
+	}
+
 	public ObjectImage(int[][] labeledImage, int nlabels, BufferedImage source) {
 		this(labeledImage, nlabels, source, 0.01);
 	}
@@ -155,9 +184,14 @@ public class ObjectImage {
 	 *
 	 */
 	public titech.image.dsp.Region addRegion(BufferedImage img, Color stroke) {
+		return addRegion(img, stroke, null);
+	}
+	
+	/** The same, when the region is inside area */
+	public titech.image.dsp.Region addRegion(BufferedImage img, Color stroke, Rectangle area) {
 		
 		// count white pixels (black are background)
-		titech.image.dsp.Region region = calculateFeatures(img);
+		titech.image.dsp.Region region = calculateFeatures(img, area);
 		region.setColor(stroke);
 
 		
@@ -186,8 +220,19 @@ public class ObjectImage {
 	  * every color in settitech.image.dsp.Regions(BufferedImage)
 	  */
 	public titech.image.dsp.Region calculateFeatures(BufferedImage img) {
+		return calculateFeatures(img, null);
+	}
+	
+	/**
+	 * The same, but only the pixels inside area are read. The rest of the
+	 * image must be black. The features are still relative to the whole image.
+	 */
+	public titech.image.dsp.Region calculateFeatures(BufferedImage img, Rectangle area) {
 		int width = img.getWidth();
 		int height = img.getHeight();
+		Rectangle bounds = new Rectangle(0, 0, width, height);
+		if (area != null) bounds = bounds.intersection(area);
+		int[] row = new int[Math.max(bounds.width, 0)];
 
 		int n=0; // number of object pixels
 		double vol=.0; // normalized volume
@@ -208,9 +253,10 @@ public class ObjectImage {
 		double elongation=.0; 
 		
 
-		for (int j = 0; j < height; j++) {
-			for (int i = 0; i < width; i++) {
-				int r = img.getRGB(i, j) & 0x00FFFFFF;
+		for (int j = bounds.y; j < bounds.y+bounds.height; j++) {
+			img.getRGB(bounds.x, j, bounds.width, 1, row, 0, bounds.width);
+			for (int i = bounds.x; i < bounds.x+bounds.width; i++) {
+				int r = row[i-bounds.x] & 0x00FFFFFF;
 				if (r!=0) { 
 					n++; // count all non-black pixels
 					if (i < minx) {
@@ -238,8 +284,9 @@ public class ObjectImage {
 
 			// calculate 2nd momentums inside bounding box
 			for (int j = miny; j < maxy; j++) {
+				img.getRGB(minx, j, maxx-minx, 1, row, 0, bounds.width);
 				for (int i = minx; i < maxx; i++) {
-					int r = img.getRGB(i, j)& 0x00FFFFFF;
+					int r = row[i-minx]& 0x00FFFFFF;
 					if (r != 0) {
 						double pX = (double) i - centerX;
 						double pY = (double) j - centerY;
@@ -294,15 +341,77 @@ public class ObjectImage {
 	public void setRegions(BufferedImage bim) {
 		ColorLabel cl = new ColorLabel(bim);
 		nlabels = cl.getNLabels();
-		setRegions(cl.getLabeledMatrix(), bim);
+		setRegions(cl.getLabels(), cl.width, cl.height, bim);
 		labeledImage = cl.getAsImage(regions, equivalences);
 	}
 	
 	public void setRegions(int[][] img, BufferedImage bim) {
-		clear(); // empty the titech.image.dsp.Regions vector		
-		
 		int width = img.length;
 		int height = img[0].length;
+		int[] labels = new int[width*height];
+		for (int j = 0; j < height; j++) {
+			for (int i = 0; i < width; i++) labels[j*width+i] = img[i][j];
+		}
+		setRegions(labels, width, height, bim);
+	}
+	
+	/**
+	 * Computes the regions from the labels of the pixels, in rows.
+	 * <p>
+	 * The first pass over the labels counts the pixels, bounding boxes,
+	 * moments and colors of every region, and the second one adds up the
+	 * deviations from their means. Each region adds its pixels in the same
+	 * order as if it were scanned alone, so the features are the same as
+	 * computing them region by region.
+	 */
+	public void setRegions(int[] img, int width, int height, BufferedImage bim) {
+		computeRegions(img, width, height, bim);
+		
+		// compute the color histogram now
+		// !!!!!!!!!!!!!!!!!!!!!!!!!!!!!
+		if (labmap!=null) {
+			computeColorHistogram(bim,labmap);
+			
+			// compute also the region histogram
+			// !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
+			computeRegionHistogram();			
+		}
+	}
+	
+	/**
+	 * Like setRegions(bim), after only the pixels inside changed have been
+	 * modified. before has the previous pixels of changed, as given by
+	 * bim.getRGB(changed.x, changed.y, changed.width, changed.height, ...).
+	 * The color histogram is updated from those pixels, the regions are
+	 * computed again.
+	 */
+	public void updateRegions(BufferedImage bim, Rectangle changed, int[] before) {
+		ColorLabel cl = new ColorLabel(bim);
+		nlabels = cl.getNLabels();
+		computeRegions(cl.getLabels(), cl.width, cl.height, bim);
+		labeledImage = cl.getAsImage(regions, equivalences);
+		if (labmap==null) return;
+		
+		int width = bim.getWidth();
+		int height = bim.getHeight();
+		if (colorCounts == null || before == null) {
+			computeColorHistogram(bim,labmap);
+		} else if (!changed.isEmpty()) {
+			int[] after = bim.getRGB(changed.x, changed.y, changed.width, changed.height,
+									 null, 0, changed.width);
+			for (int i=0;i<after.length;i++) {
+				colorCounts[tables.histogramBin(before[i])]--;
+				colorCounts[tables.histogramBin(after[i])]++;
+			}
+			for (int i=0;i<colorCounts.length;i++)
+				histogram[RHISTO_SIZE+i]=(double)colorCounts[i]/(double)(height*width);
+		}
+		computeRegionHistogram();
+	}
+	
+	/** setRegions() without the histograms */
+	void computeRegions(int[] img, int width, int height, BufferedImage bim) {
+		clear(); // empty the titech.image.dsp.Regions vector		
 		
 		int[] n = new int[nlabels];
 		// numero de punts per regio
@@ -338,13 +447,18 @@ public class ObjectImage {
 		double[][] skewness = new double[nlabels][3];
 		Raster rasta = null;
 		if (original != null) rasta = original.getData();
+		int bands = (rasta != null) ? rasta.getNumBands() : 0;
+		int[] row = new int[width*Math.max(bands,1)];
 		int[] color=new int[nlabels];
 		
 		
 		for (int j = 0; j < height; j++) {
+			// we assume the image has 3 bands!
+			if (rasta != null) rasta.getPixels(0, j, width, 1, row);
+			else bim.getRGB(0, j, width, 1, row, 0, width);
 			for (int i = 0; i < width; i++) {
 				// get index or color
-				int r = img[i][j];
+				int r = img[j*width+i];
 				n[r]++; // we count even the pixels of the background
 						//System.err.println("i "+i+" j "+j+" r "+r);
 				if (r > 0 && r < nlabels) {
@@ -367,38 +481,52 @@ public class ObjectImage {
 					momentY[r] += j;
 					
 					if (rasta != null) {
-						// we assume the image has 3 bands!
-						meanColor[r][0] += rasta.getSample(i, j, 0);
-						meanColor[r][1] += rasta.getSample(i, j, 1);
-						meanColor[r][2] += rasta.getSample(i, j, 2);
+						meanColor[r][0] += row[i*bands];
+						meanColor[r][1] += row[i*bands+1];
+						meanColor[r][2] += row[i*bands+2];
 					} else {
-						color[r] = bim.getRGB(i,j);
+						color[r] = row[i];
 					}
 
 				}
 			}
 		}
 
-		if (rasta != null) {
-			for (int r = 1; r < nlabels; r++) {
-				if (n[r] > 0) {
+		for (int r = 1; r < nlabels; r++) {
+			if (n[r] > 0) {
+				if (rasta != null) {
 					// normalized 0..255
 					for (int c = 0; c < 3; c++) {
 						meanColor[r][c] /= n[r];
 					}
 				}
+				// mass centre
+				centerX[r] =  (double)momentX[r] /  (double)n[r];
+				centerY[r] =  (double)momentY[r] /  (double)n[r];
 			}
-			for (int j = 0; j < height; j++) {
-				for (int i = 0; i < width; i++) {
-					// get index or color
-					int r = img[i][j];
-					if (r > 0 && r < nlabels) {
+		}
+		for (int j = 0; j < height; j++) {
+			if (rasta != null) rasta.getPixels(0, j, width, 1, row);
+			for (int i = 0; i < width; i++) {
+				// get index or color
+				int r = img[j*width+i];
+				if (r > 0 && r < nlabels) {
+					if (rasta != null) {
 						for (int c = 0; c < 3; c++) {
-							double p = (double)rasta.getSample(i, j, c) - meanColor[r][c];
+							double p = (double)row[i*bands+c] - meanColor[r][c];
 							deviation[r][c] += p * p;
 							skewness[r][c] += p * p * p;
 						}
 					}
+					// 2nd momentums inside the bounding box, without its
+					// last row and column
+					if (j < maxy[r] && i < maxx[r]) {
+						double pX = (double) i - centerX[r];
+						double pY = (double) j - centerY[r];
+						momentXX[r] += pX * pX;
+						momentXY[r] += pX * pY;
+						momentYY[r] += pY * pY;
+					}
 				}
 			}
 		}
@@ -410,10 +538,6 @@ public class ObjectImage {
 		for (int r = 1; r < nlabels; r++) {
 			equivalences[r]=0;
 			if (n[r] > 0) {
-				// mass centre
-				centerX[r] =  (double)momentX[r] /  (double)n[r];
-				centerY[r] =  (double)momentY[r] /  (double)n[r];
-							
 				// normalized 0..1
 				for (int c = 0; c < 3; c++) {
 					// change 255 by the maximum value! L*a*b -> 100
@@ -422,19 +546,6 @@ public class ObjectImage {
 					skewness[r][c] = AMath.qbic(skewness[r][c] / n[r])/colorNorm;
 				}
 				
-				// calculate 2nd momentums inside bounding box
-				for (int j = miny[r]; j < maxy[r]; j++) {
-					for (int i = minx[r]; i < maxx[r]; i++) {
-						if (img[i][j] == r) {
-							double pX = (double) i - centerX[r];
-							double pY = (double) j - centerY[r];
-							momentXX[r] += pX * pX;
-							momentXY[r] += pX * pY;
-							momentYY[r] += pY * pY;
-						}
-					}
-				}
-				
 				momentXX[r] /= (double)n[r];
 				momentXY[r] *= 2./(double)n[r];
 				momentYY[r] /= (double)n[r];
@@ -487,22 +598,25 @@ public class ObjectImage {
 				
 			} // endif n[r]>0
 		} // for all regions
-		
-		
-		// compute the color histogram now
-		// !!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-		if (labmap!=null) {
-			computeColorHistogram(bim,labmap);
-			
-			// compute also the region histogram
-			// !!!!!!!!!!!!!!!!!!!!!!!!!!!!!!
-			computeRegionHistogram();			
-		}
 	}
 	
-	/** Instead of returning a titech.image.dsp.Region, it returns an index to the titech.image.dsp.Region Vector */
+	/** Instead of returning a titech.image.dsp.Region, it returns an index to the titech.image.dsp.Region Vector.
+	  * It keeps the distance in minDist, so the ObjectImage can't be shared by
+	  * several queries; use closestRegion() for that. */
 	public int minDistanceRegion(titech.image.dsp.Region query) {
-		minDist = Double.MAX_VALUE;
+		ValuePair closest = closestRegion(query, weights);
+		minDist = closest.value;
+		return closest.index;
+	}
+	
+	/**
+	 * The closest region to the query, with the weights of each attribute
+	 * (position, volume, color, orientation). The ValuePair has the index of
+	 * the region and its distance, or Double.MAX_VALUE if there are no
+	 * regions. Nothing is modified, so it is safe to call from many threads.
+	 */
+	public ValuePair closestRegion(titech.image.dsp.Region query, double[] weights) {
+		double minDist = Double.MAX_VALUE;
 		int minR = 0;
 		for (int i=0;i<regions.size();i++) {
 			titech.image.dsp.Region r = (titech.image.dsp.Region)regions.get(i);
@@ -512,7 +626,7 @@ public class ObjectImage {
 				minDist = d;
 			}
 		}
-		return minR;
+		return new ValuePair(minR, minDist);
 	}
 	
 	public void setWeights(double position, double volume, double color, double orientation) {
@@ -580,25 +694,26 @@ public class ObjectImage {
 		
 	}
 	
+	/** The bins come from the cache of ColorTables.histogramBin() */
 	private void computeColorHistogram(BufferedImage image, float[][] labmap) {
 		
         int height = image.getHeight();
         int width = image.getWidth();
 		int bins = labmap.length;
 		
+		int[] counts = new int[bins];
+		int[] row = new int[width];
         for (int j = 0; j < height; j++) {
+			image.getRGB(0, j, width, 1, row, 0, width);
             for (int i = 0; i < width; i++) {
-				int rgb = image.getRGB(i,j);
-				float[] lab = Utilities.sRGBtoLab(rgb);
-				
-				int bin = AMath.findMin(lab,labmap);
-				histogram[RHISTO_SIZE+bin]+=1.0;
+				counts[tables.histogramBin(row[i])]++;
             }
         }
 		
 		// normalize histogram
 		for (int i=0;i<bins;i++)
-			histogram[RHISTO_SIZE+i]/=(double)(height*width);
+			histogram[RHISTO_SIZE+i]=(double)counts[i]/(double)(height*width);
+		colorCounts = counts;
 		
     }
 	
@@ -637,6 +752,32 @@ public class ObjectImage {
 		return descriptor;
 	}
 	
+	/**
+	 * The same as getDescriptor(), in binary: the same fields in the same 
+	 * order, as ints and doubles. See descriptorSize().
+	 */
+	public void putDescriptor(java.nio.ByteBuffer buf) {
+		int n = regions.size();
+		getContourSum();
+		getPairwises(); // maybe they are not yet computed!
+		
+		buf.putInt(n+1);
+		buf.putDouble(contourCount);
+		for (int k=0;k<4;k++) buf.putDouble(pwdistances[k]);
+		for (int i=0;i<n;i++) buf.putInt(regions.get(i).ccat);
+		double[] ff = new double[NFEATURES];
+		for (int i=0;i<n;i++) {
+			regions.get(i).getFeatures(ff);
+			for (int f=0;f<NFEATURES;f++) buf.putDouble(ff[f]);
+		}
+	}
+	
+	/** Bytes written by putDescriptor() */
+	public int descriptorSize() {
+		int n = regions.size();
+		return 4 + 5*8 + n*(4 + NFEATURES*8);
+	}
+	
 	/** Gets the amount (sum) of contours in the segmented image. 
 	  *  It computes it the first time the method is invoked.
 	  * -NOT IMPLEMENTED-
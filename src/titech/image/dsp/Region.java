@@ -114,7 +114,12 @@ public class Region {
 		return distance(pair, new double[] {.25,.25,.25,.25}, distances);
 	}
 	
-	double distance(Region pair, double[] weights, double[] distances) {
+	/**
+	 * Weighted distance to another region, with the weights of each attribute
+	 * (position, volume, color, orientation). If distances isn't null, it
+	 * gets the distance of each attribute. Neither region is modified.
+	 */
+	public double distance(Region pair, double[] weights, double[] distances) {
 		double pd = Math.sqrt((cx-pair.cx)*(cx-pair.cx)+
 							  (cy-pair.cy)*(cy-pair.cy));
 		double vd = Math.sqrt((vol-pair.vol)*(vol-pair.vol)+
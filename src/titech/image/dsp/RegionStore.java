@@ -0,0 +1,416 @@
+//
+//  RegionStore.java
+//  sketchRC
+//
+package titech.image.dsp;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import titech.util.*;
+
+/**
+ * The regions of all the images of the DB, kept as one float array per
+ * feature instead of an ObjectImage per image with a Region per region.
+ * The regions of an image are contiguous: image i owns the regions from
+ * offsets[i] to offsets[i+1]. The cosine and sine of the orientation are
+ * stored instead of the angle, so a query doesn't compute them again for
+ * every region.
+ * <p>
+ * An image that is replaced or removed leaves a hole (its location is null)
+ * until there are as many dead regions as live ones, and then the arrays are
+ * compacted. The updates are synchronized. A query takes a Snapshot of the
+ * arrays with the lock and searches it without, so many queries can run at
+ * once, and the IndexWatcher doesn't wait for them: put() only writes after
+ * the regions and images a Snapshot has, and remove() and compact() write
+ * to new arrays when a Snapshot has the old ones.
+ * <p>
+ * Once there are TREE_MIN_REGIONS regions, a RegionTree finds the closest
+ * region of every image, with the same result as the scan of all of them.
+ * It is built in the background, so the queries scan the regions until it
+ * is ready.
+ */
+public class RegionStore {
+	/** Center */
+	float[] cx, cy;
+	/** Volume and relative volume */
+	float[] vol, rvol;
+	/** Average color (in L*a*b* /100) */
+	float[] cl, ca, cb;
+	/** Cosine and sine of the orientation */
+	float[] cos, sin;
+	float[] elongation;
+	int nregions;
+	/** Regions of the removed images */
+	int dead;
+
+	/** First region of every image, and nregions at the end */
+	int[] offsets;
+	/** Location of every image, or null if it has been removed */
+	String[] locations;
+	int nimages;
+	/** Image of every location */
+	HashMap<String,Integer> index;
+	/** Words of the locations, see KeywordIndex */
+	KeywordIndex keywords;
+	/** A Snapshot has the locations, so remove() copies them first */
+	boolean shared;
+	/** Index of the first images, or null, see updateTree() */
+	RegionTree tree;
+	/** A RegionTree is being built */
+	boolean building;
+	/** Compactions so far: a tree built before the last one is useless */
+	int compactions;
+	/** Regions needed to build a RegionTree */
+	public static int TREE_MIN_REGIONS = 65536;
+	/** Builds the RegionTrees of all the stores, one at a time */
+	static ExecutorService treeBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "region-tree");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	public RegionStore() {
+		allocate(1024);
+		offsets = new int[65];
+		locations = new String[64];
+		index = new HashMap<String,Integer>();
+		keywords = new KeywordIndex();
+	}
+
+	void allocate(int size) {
+		cx = new float[size]; cy = new float[size];
+		vol = new float[size]; rvol = new float[size];
+		cl = new float[size]; ca = new float[size]; cb = new float[size];
+		cos = new float[size]; sin = new float[size];
+		elongation = new float[size];
+	}
+
+	/** Number of images */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/** Number of regions */
+	public synchronized int regionCount() {
+		return nregions - dead;
+	}
+
+	/**
+	 * Adds the regions of an image, or replaces the ones of the image with
+	 * the same location. The ObjectImage isn't kept.
+	 */
+	public synchronized void put(ObjectImage obi) {
+		Vector<Region> regions = obi.regions;
+		int k = reserve(obi.getLocation(), regions.size());
+		for (int i=0;i<regions.size();i++) {
+			Region r = regions.get(i);
+			set(k++, r.cx, r.cy, r.vol, r.rvol, r.color[0], r.color[1], r.color[2],
+				r.orientation, r.elongation);
+		}
+		append(obi.getLocation(), regions.size());
+	}
+
+	/**
+	 * Like put(ObjectImage), reading the regions from the binary form of
+	 * the descriptor (see ObjectImage.putDescriptor()), like the one of a
+	 * mapped BinaryIndex, without making any object.
+	 */
+	public synchronized void put(String location, ByteBuffer descriptor) {
+		ByteBuffer buf = descriptor.duplicate();
+		int n = buf.getInt()-1; // region 0 is the background
+		// contour count, pairwise distances and color categories
+		int features = buf.position() + 5*8 + n*4;
+		int k = reserve(location, n);
+		for (int i=0;i<n;i++) {
+			int f = features + i*ObjectImage.NFEATURES*8;
+			set(k++, buf.getDouble(f), buf.getDouble(f+8), buf.getDouble(f+16), buf.getDouble(f+24),
+				buf.getDouble(f+32), buf.getDouble(f+40), buf.getDouble(f+48),
+				buf.getDouble(f+13*8), buf.getDouble(f+14*8));
+		}
+		append(location, n);
+	}
+
+	/**
+	 * Removes the image with that location and makes room for n regions.
+	 * Returns the first one.
+	 */
+	int reserve(String location, int n) {
+		remove(location);
+		if (nregions+n > cx.length) grow(nregions+n);
+		if (nimages == locations.length) {
+			String[] l = new String[2*nimages];
+			System.arraycopy(locations, 0, l, 0, nimages);
+			locations = l;
+			int[] o = new int[2*nimages+1];
+			System.arraycopy(offsets, 0, o, 0, nimages+1);
+			offsets = o;
+		}
+		return nregions;
+	}
+
+	void set(int k, double x, double y, double v, double rv, double l, double a, double b,
+			 double orientation, double e) {
+		cx[k] = (float)x; cy[k] = (float)y;
+		vol[k] = (float)v; rvol[k] = (float)rv;
+		cl[k] = (float)l; ca[k] = (float)a; cb[k] = (float)b;
+		cos[k] = (float)Math.cos(orientation); sin[k] = (float)Math.sin(orientation);
+		elongation[k] = (float)e;
+	}
+
+	/** Adds the image of the n regions set after reserve() */
+	void append(String location, int n) {
+		nregions += n;
+		locations[nimages] = location;
+		index.put(location, nimages);
+		keywords.add(nimages, location);
+		nimages++;
+		offsets[nimages] = nregions;
+		updateTree();
+	}
+
+	/** Removes the image with the given location, if it is there */
+	public synchronized void remove(String location) {
+		Integer i = index.remove(location);
+		if (i == null) return;
+		if (shared) {
+			locations = locations.clone();
+			shared = false;
+		}
+		locations[i] = null;
+		dead += offsets[i+1]-offsets[i];
+		if (dead > nregions-dead) compact();
+		updateTree();
+	}
+
+	void grow(int size) {
+		float[][] columns = {cx, cy, vol, rvol, cl, ca, cb, cos, sin, elongation};
+		allocate(Math.max(size, 2*cx.length));
+		float[][] grown = {cx, cy, vol, rvol, cl, ca, cb, cos, sin, elongation};
+		for (int c=0;c<columns.length;c++) {
+			System.arraycopy(columns[c], 0, grown[c], 0, nregions);
+		}
+	}
+
+	/**
+	 * Takes out the holes of the removed images. The regions go to new
+	 * arrays, since the old ones may be being searched.
+	 */
+	void compact() {
+		float[][] columns = {cx, cy, vol, rvol, cl, ca, cb, cos, sin, elongation};
+		int[] oldOffsets = offsets;
+		String[] oldLocations = locations;
+		allocate(cx.length);
+		float[][] compacted = {cx, cy, vol, rvol, cl, ca, cb, cos, sin, elongation};
+		offsets = new int[oldOffsets.length];
+		locations = new String[oldLocations.length];
+		shared = false;
+		int n = 0, m = 0;
+		keywords.clear();
+		for (int i=0;i<nimages;i++) {
+			if (oldLocations[i] == null) continue;
+			int start = oldOffsets[i], len = oldOffsets[i+1]-start;
+			for (int c=0;c<columns.length;c++) {
+				System.arraycopy(columns[c], start, compacted[c], n, len);
+			}
+			locations[m] = oldLocations[i];
+			offsets[m] = n;
+			index.put(locations[m], m);
+			keywords.add(m, locations[m]);
+			n += len;
+			m++;
+		}
+		offsets[m] = n;
+		nimages = m;
+		nregions = n;
+		dead = 0;
+		// the regions have moved
+		tree = null;
+		compactions++;
+	}
+
+	/**
+	 * The closest region of every image to the query, like
+	 * ObjectImage.closestRegion(), for the images whose location matches
+	 * the keywords (see KeywordIndex) and whose distance is below
+	 * the threshold. Only the best top.capacity() are kept, see TopK.
+	 * The Vector is sorted by distance and uses ValuePair, where
+	 *   - index:  image number
+	 *   - value:  distance to the query
+	 *   - ilabel: index of the matching region (== palette index + 1)
+	 *   - label:  location of the segmented image
+	 * It throws a CancellationException if cancel (which may be null) is
+	 * cancelled before the end.
+	 */
+	public Vector<ValuePair> search(Region query, double[] weights,
+									String keyword, final double threshold,
+									TopK top, Cancellable cancel) {
+		final Snapshot s;
+		final BitSet candidates;
+		synchronized (this) {
+			s = snapshot();
+			candidates = keywords.candidates(keyword);
+		}
+		final QueryFeatures q = new QueryFeatures(query, weights);
+		boolean bounded = weights[0] >= 0 && weights[1] >= 0 && weights[2] >= 0 && weights[3] >= 0;
+		// the images added after the tree was made are scanned
+		final int first = (bounded && s.tree != null) ? s.tree.nimages : 0;
+		QueryExecutor.search(s.nimages-first, top, new QueryExecutor.Scorer() {
+			public void score(int from, int to, TopK t) {
+				s.scan(q, candidates, threshold, first+from, first+to, t);
+			}
+		}, cancel);
+		if (first > 0) s.tree.search(s, q, candidates, threshold, top, cancel);
+		Vector<ValuePair> result = new Vector<ValuePair>();
+		int n = top.sort();
+		for (int j=0;j<n;j++) {
+			int i = top.id(j);
+			result.add(new ValuePair(i, top.value(j), top.label(j), s.locations[i]));
+		}
+		return result;
+	}
+
+	/** The arrays as they are now, to search them without the lock */
+	synchronized Snapshot snapshot() {
+		shared = true;
+		return new Snapshot(this);
+	}
+
+	/**
+	 * The arrays of the store when a query started. The store never
+	 * changes what a Snapshot sees, see the class comment.
+	 */
+	static class Snapshot {
+		float[] cx, cy, vol, rvol, cl, ca, cb, cos, sin, elongation;
+		int[] offsets;
+		String[] locations;
+		int nimages;
+		RegionTree tree;
+
+		Snapshot(RegionStore store) {
+			cx = store.cx; cy = store.cy;
+			vol = store.vol; rvol = store.rvol;
+			cl = store.cl; ca = store.ca; cb = store.cb;
+			cos = store.cos; sin = store.sin;
+			elongation = store.elongation;
+			offsets = store.offsets;
+			locations = store.locations;
+			nimages = store.nimages;
+			tree = store.tree;
+		}
+
+		/** Distance of region k to the query, like Region.distance() */
+		double distance(QueryFeatures q, int k) {
+			double x = cx[k]-q.qx, y = cy[k]-q.qy;
+			double pd = Math.sqrt(x*x+y*y);
+			double v = vol[k]-q.qvol, rv = rvol[k]-q.qrvol;
+			double vd = Math.sqrt(v*v+rv*rv);
+			double cd = 0;
+			if (q.color) {
+				double l = cl[k]-q.ql, a = ca[k]-q.qa, b = cb[k]-q.qb;
+				cd = Math.sqrt(l*l+a*a+b*b);
+			}
+			double cosa = cos[k]*q.qcos+sin[k]*q.qsin;
+			double e = elongation[k];
+			double od = (e*q.qe*(1.-Math.abs(cosa))+Math.abs(e-q.qe))/2.;
+			double[] weights = q.weights;
+			return pd*weights[0]+vd*weights[1]+cd*weights[2]+od*weights[3];
+		}
+
+		/**
+		 * Offers the images from..to-1 to top, see search(). If candidates
+		 * isn't null, only the images in it.
+		 */
+		void scan(QueryFeatures q, BitSet candidates, double threshold,
+				  int from, int to, TopK top) {
+			for (int i=from;i<to;i++) {
+				if (candidates != null) {
+					i = candidates.nextSetBit(i);
+					if (i < 0 || i >= to) break;
+				}
+				if (locations[i] == null) continue;
+				double minDist = Double.MAX_VALUE;
+				int start = offsets[i], end = offsets[i+1];
+				int minR = 0;
+				for (int k=start;k<end;k++) {
+					double d = distance(q, k);
+					if (d < minDist) {
+						minR = k-start;
+						minDist = d;
+					}
+				}
+				if (minDist < threshold) top.offer(minDist, i, minR);
+			}
+		}
+	}
+
+	/**
+	 * Builds the RegionTree when there are enough regions, and builds it
+	 * again when many images have been added after it. It is built by
+	 * treeBuilder, without the lock, so neither the queries nor the
+	 * updates wait for it.
+	 */
+	void updateTree() {
+		if (nregions-dead < TREE_MIN_REGIONS) {
+			tree = null;
+			return;
+		}
+		if (building) return;
+		if (tree != null && nregions-tree.nregions <= tree.nregions/4) return;
+		building = true;
+		treeBuilder.execute(new Runnable() {
+			public void run() {
+				buildTree();
+			}
+		});
+	}
+
+	/** Builds a tree of the images there are now, and puts it in */
+	void buildTree() {
+		RegionTree t;
+		int c;
+		synchronized (this) {
+			t = new RegionTree(this);
+			c = compactions;
+		}
+		try {
+			t.build();
+		} catch (RuntimeException e) {
+			System.err.println("RegionStore: "+e);
+			t = null;
+		}
+		synchronized (this) {
+			building = false;
+			if (c != compactions) {
+				// the regions have moved, try again with the new ones
+				updateTree();
+			} else if (t != null && nregions-dead >= TREE_MIN_REGIONS) {
+				tree = t;
+				// maybe many images have been added meanwhile
+				updateTree();
+			}
+		}
+	}
+
+	/** The features of a query region, to compute its distance to the stored ones */
+	static class QueryFeatures {
+		double qx, qy, qvol, qrvol;
+		double ql, qa, qb;
+		double qcos, qsin;
+		double qe;
+		double[] weights;
+		boolean color;
+
+		QueryFeatures(Region query, double[] weights) {
+			qx = query.cx; qy = query.cy; qvol = query.vol; qrvol = query.rvol;
+			ql = query.color[0]; qa = query.color[1]; qb = query.color[2];
+			qcos = Math.cos(query.orientation); qsin = Math.sin(query.orientation);
+			qe = query.elongation;
+			this.weights = weights;
+			color = weights[2] > 0;
+		}
+	}
+}
@@ -0,0 +1,396 @@
+//
+//  RegionTree.java
+//  sketchRC
+//
+package titech.image.dsp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import titech.util.*;
+
+/**
+ * A k-d tree over the regions of a RegionStore, to find the closest region
+ * of every image without computing the distance to all of them.
+ * <p>
+ * Every node has the bounding box of its regions in center, volume,
+ * color and elongation. The distance of the query to any region of the box
+ * is at least the weighted distance to the box (the orientation term is at
+ * least half the elongation difference). The leaves are visited from the
+ * closest box on, and the search stops when the next box is farther than
+ * the threshold and than the worst of the best images found. Every region
+ * closer than that has been seen, so the result, ties included, is the
+ * same as the one of RegionStore.scan().
+ * <p>
+ * The tree has the images the store had when it was made. The ones
+ * removed since then are skipped, the ones added are scanned. It is made
+ * with the lock of the store, which only takes its arrays, and built
+ * without it (see RegionStore.updateTree()), since the store writes to new
+ * arrays instead of changing them, like for a RegionStore.Snapshot. Once built, it doesn't
+ * change, and many queries can search it at the same time.
+ */
+public class RegionTree {
+	/** Regions of a leaf */
+	static final int LEAF_SIZE = 32;
+	/** Features of the bounding boxes */
+	static final int DIMS = 8;
+	/** Relative error allowed to the lower bound of the distance */
+	static final double BOUND_SLACK = 1e-9;
+	/** Error of the orientation term, see lowerBound() */
+	static final double ORIENTATION_SLACK = 1e-6;
+
+	/** Images and regions of the store when the tree was made */
+	int nimages;
+	int nregions;
+	/** offsets, locations and features of the store when the tree was made */
+	int[] offsets;
+	String[] locations;
+	float[][] columns;
+	/** Image of every region */
+	int[] image;
+	/** Regions, in the order of the leaves */
+	int[] idx;
+
+	int nnodes;
+	/** Regions of every node: idx[start..end) */
+	int[] start, end;
+	/** Children of every node, or -1 for a leaf */
+	int[] left, right;
+	/** Minimum and maximum of every feature: bounds[node*2*DIMS + 2*d (+1)] */
+	float[] bounds;
+
+	/** The arrays of the queries of every thread, see Scratch */
+	ThreadLocal<Scratch> scratch;
+
+	/**
+	 * The state of a query for every image. A thread keeps it for its next
+	 * queries, since clearing what a query touched is much cheaper than
+	 * allocating it again.
+	 */
+	static class Scratch {
+		/** Closest region of every image to the query */
+		double[] best;
+		/** Its number + 1, or 0 if none has been seen */
+		int[] bestR;
+		/** Images with a bestR, to clear it after the query */
+		int[] seen = new int[64];
+		int nseen = 0;
+		/** Positions in the ImageHeap */
+		int[] pos;
+
+		Scratch(int nimages) {
+			best = new double[nimages];
+			bestR = new int[nimages];
+			pos = new int[nimages];
+		}
+	}
+
+	/** Takes the images of the store. Call it with the lock of the store. */
+	RegionTree(RegionStore store) {
+		nimages = store.nimages;
+		nregions = store.nregions;
+		offsets = store.offsets;
+		locations = store.locations;
+		// remove() has to leave them as they are
+		store.shared = true;
+		columns = new float[][] {store.cx, store.cy, store.vol, store.rvol,
+			store.cl, store.ca, store.cb, store.elongation};
+	}
+
+	/** Builds the tree. It doesn't need the lock of the store. */
+	void build() {
+		image = new int[nregions];
+		int n = 0;
+		for (int i=0;i<nimages;i++) {
+			for (int k=offsets[i];k<offsets[i+1];k++) image[k] = i;
+			if (locations[i] != null) n += offsets[i+1]-offsets[i];
+		}
+		idx = new int[n];
+		n = 0;
+		for (int i=0;i<nimages;i++) {
+			if (locations[i] == null) continue;
+			for (int k=offsets[i];k<offsets[i+1];k++) idx[n++] = k;
+		}
+		int capacity = Math.max(1, 4*n/LEAF_SIZE);
+		start = new int[capacity]; end = new int[capacity];
+		left = new int[capacity]; right = new int[capacity];
+		bounds = new float[capacity*2*DIMS];
+		nnodes = 0;
+		build(0, n);
+		// only needed to build it
+		offsets = null;
+		locations = null;
+		columns = null;
+		scratch = new ThreadLocal<Scratch>() {
+			protected Scratch initialValue() {
+				return new Scratch(nimages);
+			}
+		};
+	}
+
+	float[] column(int d) {
+		return columns[d];
+	}
+
+	/** Builds the node of idx[from..to) and returns its number */
+	int build(int from, int to) {
+		if (nnodes == start.length) grow();
+		int node = nnodes++;
+		start[node] = from;
+		end[node] = to;
+		left[node] = right[node] = -1;
+		int split = -1;
+		float spread = 0;
+		for (int d=0;d<DIMS;d++) {
+			float[] c = column(d);
+			float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+			for (int i=from;i<to;i++) {
+				float v = c[idx[i]];
+				if (v < min) min = v;
+				if (v > max) max = v;
+			}
+			bounds[node*2*DIMS+2*d] = min;
+			bounds[node*2*DIMS+2*d+1] = max;
+			if (max-min > spread) {
+				spread = max-min;
+				split = d;
+			}
+		}
+		if (to-from <= LEAF_SIZE || split < 0) return node;
+		int middle = (from+to) >>> 1;
+		select(column(split), from, to-1, middle);
+		int l = build(from, middle);
+		int r = build(middle, to);
+		left[node] = l;
+		right[node] = r;
+		return node;
+	}
+
+	void grow() {
+		int n = 2*start.length;
+		start = Arrays.copyOf(start, n);
+		end = Arrays.copyOf(end, n);
+		left = Arrays.copyOf(left, n);
+		right = Arrays.copyOf(right, n);
+		bounds = Arrays.copyOf(bounds, n*2*DIMS);
+	}
+
+	/** Moves the k-th smallest of idx[lo..hi] to k, the smaller before it */
+	void select(float[] c, int lo, int hi, int k) {
+		while (hi > lo) {
+			float pivot = c[idx[(lo+hi) >>> 1]];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (c[idx[i]] < pivot) i++;
+				while (c[idx[j]] > pivot) j--;
+				if (i <= j) {
+					int t = idx[i]; idx[i] = idx[j]; idx[j] = t;
+					i++; j--;
+				}
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
+	}
+
+	/** Lower bound of the distance of the query to the regions of a node */
+	double lowerBound(RegionStore.QueryFeatures q, int node) {
+		int b = node*2*DIMS;
+		double x = gap(q.qx, b), y = gap(q.qy, b+2);
+		double v = gap(q.qvol, b+4), rv = gap(q.qrvol, b+6);
+		double cd = 0;
+		if (q.color) {
+			double l = gap(q.ql, b+8), a = gap(q.qa, b+10), c = gap(q.qb, b+12);
+			cd = Math.sqrt(l*l+a*a+c*c);
+		}
+		// cos and sin are floats, 1-|cosa| can be a little below 0
+		double od = gap(q.qe, b+14)/2.-ORIENTATION_SLACK;
+		double[] weights = q.weights;
+		return Math.sqrt(x*x+y*y)*weights[0]+Math.sqrt(v*v+rv*rv)*weights[1]+
+			cd*weights[2]+od*weights[3];
+	}
+
+	/** Distance of a value to the interval of bounds[b..b+1] */
+	double gap(double value, int b) {
+		if (value < bounds[b]) return bounds[b]-value;
+		if (value > bounds[b+1]) return value-bounds[b+1];
+		return 0;
+	}
+
+	/**
+	 * Offers to top the closest region of the images of the tree, like
+	 * RegionStore.Snapshot.scan(). The weights must not be negative.
+	 */
+	void search(RegionStore.Snapshot store, RegionStore.QueryFeatures q, BitSet candidates,
+				double threshold, TopK top, Cancellable cancel) {
+		Scratch s = scratch.get();
+		ImageHeap heap = new ImageHeap(top.capacity(), s.pos);
+		try {
+			search(store, q, candidates, threshold, heap, top, cancel, s);
+		} finally {
+			// the arrays are cleared for the next query
+			for (int j=0;j<s.nseen;j++) s.bestR[s.seen[j]] = 0;
+			s.nseen = 0;
+			for (int j=0;j<heap.size;j++) s.pos[heap.ids[j]] = 0;
+		}
+		for (int j=0;j<heap.size;j++) top.offer(heap.values[j], heap.ids[j], heap.labels[j]);
+	}
+
+	void search(RegionStore.Snapshot store, RegionStore.QueryFeatures q, BitSet candidates,
+				double threshold, ImageHeap heap, TopK top, Cancellable cancel, Scratch s) {
+		double[] best = s.best;
+		int[] bestR = s.bestR;
+		NodeQueue queue = new NodeQueue();
+		if (nnodes > 0) queue.push(lowerBound(q, 0), 0);
+		int leaves = 0;
+		while (queue.size > 0) {
+			double lb = queue.values[0];
+			int node = queue.pop();
+			double limit = Math.min(threshold, Math.min(heap.bound(), top.bound()));
+			if (lb*(1.-BOUND_SLACK) > limit) break;
+			if (left[node] >= 0) {
+				double l = lowerBound(q, left[node]);
+				if (l*(1.-BOUND_SLACK) <= limit) queue.push(l, left[node]);
+				double r = lowerBound(q, right[node]);
+				if (r*(1.-BOUND_SLACK) <= limit) queue.push(r, right[node]);
+				continue;
+			}
+			if ((++leaves & 63) == 0 && cancel != null && cancel.isCancelled())
+				throw new CancellationException();
+			for (int j=start[node];j<end[node];j++) {
+				int k = idx[j];
+				int i = image[k];
+				if (store.locations[i] == null) continue;
+				if (candidates != null && !candidates.get(i)) continue;
+				double d = store.distance(q, k);
+				int r = k-store.offsets[i];
+				if (bestR[i] == 0) {
+					if (s.nseen == s.seen.length) s.seen = Arrays.copyOf(s.seen, 2*s.nseen);
+					s.seen[s.nseen++] = i;
+				} else if (d > best[i] || (d == best[i] && r > bestR[i]-1)) {
+					continue;
+				}
+				// the first region wins the ties, like in the scan
+				best[i] = d;
+				bestR[i] = r+1;
+				if (d < threshold) heap.offer(d, i, r);
+			}
+		}
+	}
+
+	/**
+	 * The best images so far, like a TopK, but an image is only once: a
+	 * closer region of an image already there moves it instead.
+	 */
+	static class ImageHeap {
+		double[] values;
+		int[] ids;
+		int[] labels;
+		int size;
+		/** Position of every image in the heap + 1, or 0 */
+		int[] pos;
+
+		/** pos has to be all 0, and it is left with the images of the heap */
+		ImageHeap(int k, int[] pos) {
+			values = new double[k];
+			ids = new int[k];
+			labels = new int[k];
+			this.pos = pos;
+		}
+
+		double bound() {
+			if (size < values.length) return Double.POSITIVE_INFINITY;
+			return values[0];
+		}
+
+		void offer(double value, int id, int label) {
+			int p = pos[id]-1;
+			if (p >= 0) {
+				// it only gets closer, so it goes down
+				values[p] = value;
+				labels[p] = label;
+				siftDown(p);
+			} else if (size < values.length) {
+				int i = size++;
+				put(i, value, id, label);
+				siftUp(i);
+			} else if (size > 0 && TopK.greater(values[0], ids[0], value, id)) {
+				pos[ids[0]] = 0;
+				put(0, value, id, label);
+				siftDown(0);
+			}
+		}
+
+		void put(int i, double value, int id, int label) {
+			values[i] = value; ids[i] = id; labels[i] = label;
+			pos[id] = i+1;
+		}
+
+		void swap(int i, int j) {
+			double v = values[i]; int id = ids[i], label = labels[i];
+			put(i, values[j], ids[j], labels[j]);
+			put(j, v, id, label);
+		}
+
+		void siftUp(int i) {
+			while (i > 0) {
+				int parent = (i-1)/2;
+				if (!TopK.greater(values[i], ids[i], values[parent], ids[parent])) break;
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		void siftDown(int i) {
+			while (true) {
+				int child = 2*i+1;
+				if (child >= size) break;
+				if (child+1 < size && TopK.greater(values[child+1], ids[child+1], values[child], ids[child]))
+					child++;
+				if (!TopK.greater(values[child], ids[child], values[i], ids[i])) break;
+				swap(i, child);
+				i = child;
+			}
+		}
+	}
+
+	/** Min-heap of the nodes to visit, by lower bound */
+	static class NodeQueue {
+		double[] values = new double[64];
+		int[] nodes = new int[64];
+		int size = 0;
+
+		void push(double value, int node) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, 2*size);
+				nodes = Arrays.copyOf(nodes, 2*size);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i-1)/2;
+				if (values[parent] <= value) break;
+				values[i] = values[parent]; nodes[i] = nodes[parent];
+				i = parent;
+			}
+			values[i] = value; nodes[i] = node;
+		}
+
+		/** Removes the closest one and returns its node */
+		int pop() {
+			int node = nodes[0];
+			double value = values[--size];
+			int last = nodes[size];
+			int i = 0;
+			while (true) {
+				int child = 2*i+1;
+				if (child >= size) break;
+				if (child+1 < size && values[child+1] < values[child]) child++;
+				if (values[child] >= value) break;
+				values[i] = values[child]; nodes[i] = nodes[child];
+				i = child;
+			}
+			values[i] = value; nodes[i] = last;
+			return node;
+		}
+	}
+}
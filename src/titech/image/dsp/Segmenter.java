@@ -29,6 +29,11 @@ public class Segmenter {
 	public static final double COLOR_MIN_SIZE = 0.05;
 	/** Default size for the statistic ordering filter */
 	public final static int M_SIZE = 5;
+	/**
+	 * Cluster the 15-bit colors of the image, weighted by their number of
+	 * pixels, instead of every pixel. See clusterKMeans().
+	 */
+	public static boolean clusterColors = true;
 	
 	/** An indexed image */
 	BufferedImage segmented;
@@ -38,6 +43,21 @@ public class Segmenter {
 	float[] labLut;
 	byte[][] univPal;
 	
+	// buffers reused from image to image, so a Segmenter shouldn't be
+	// shared by several threads
+	/** Pixels of the image, in rows */
+	int[] pixels;
+	/** Indexed pixels, in rows */
+	byte[] indices;
+	/** L*a*b* of the pixels, in columns, 3 per pixel */
+	double[] samples;
+	/** Cluster of every pixel, in columns */
+	int[] assignment;
+	/** Bin+1 of every 15-bit color, 0 when it isn't in the image */
+	int[] binOf;
+	/** 15-bit color, number of pixels and cluster of every bin */
+	int[] binColor, binCount, binAssignment;
+	
 	public BufferedImage getSegmentedImage() {
 		return segmented;
 	}
@@ -47,39 +67,18 @@ public class Segmenter {
 	}
 	
 	public Segmenter() {
-		univPal = null;
-		catLut = new byte[32768]; // size of catlut
-		labLut = new float[32768*3]; // 3 bands
-		try {
-			java.io.InputStream is = this.getClass().getResourceAsStream("/resources/cc14.raw");
-			is.read(catLut);
-			is.close();
-			
-			is = this.getClass().getResourceAsStream("/resources/lab15bit.raw");
-			java.io.DataInputStream din = new java.io.DataInputStream(is);
-			// 15-bit palette, 32 colors per band
-			for (int r=0;r<32;r++){
-				for (int g=0;g<32;g++) {
-					for (int b=0;b<32;b++) {						
-						for (int i=0;i<3;i++) {
-							float ff = din.readFloat();
-							labLut[3*32*32*r+3*32*g+3*b+i] = ff;
-						}
-					}
-				}
-			} // end fors
-			din.close();
-						
-			// read the color palette
-			is = this.getClass().getResourceAsStream("/resources/universalEx.palette");
-			univPal=Utilities.loadPalette(is);
-			is.close();
-
-		} catch (Exception e) {
+		// shared by all the segmenters
+		ColorTables tables = ColorTables.get();
+		if (tables != null) {
+			catLut = tables.catLut;
+			labLut = tables.labLut;
+			univPal = tables.univPal;
+		} else {
 			System.err.println("Segmenter: Couldn't load resources!");
+			univPal = null;
+			catLut = new byte[32768]; // size of catlut
+			labLut = new float[32768*3]; // 3 bands
 		}
-		
-
 	}
 	
 	public ObjectImage getKMedianRegions(BufferedImage img) {
@@ -91,10 +90,10 @@ public class Segmenter {
 			BufferedImage ccat = colorCategorization(rop);
 			
 			int npixels = rop.getWidth()*rop.getHeight();
-			int[] initialAssignment = new int[npixels];
-			int k = countPresentCategories(ccat,initialAssignment);
+			if (assignment == null || assignment.length < npixels) assignment = new int[npixels];
+			int k = countPresentCategories(ccat,assignment);
 			k = Math.max(2,k);
-			BufferedImage reg = clusterKMeans(rop,k,initialAssignment);
+			BufferedImage reg = clusterKMeans(rop,k,assignment);
 			quantized = reg;
 			segmented = MOps2D.maxPercentil(14,reg,M_SIZE);
 
@@ -125,13 +124,10 @@ public class Segmenter {
 	BufferedImage colorCategorization(BufferedImage source) {
 		int w=source.getWidth(), h=source.getHeight();
 		BufferedImage sgm = createIndexedImage(w, h, univPal);
-		WritableRaster wr = sgm.getRaster();
-		for (int j=0;j<h;j++) {
-			for (int i=0;i<w;i++) {
-				int col = source.getRGB(i,j);
-				wr.setSample(i,j,0,AMath.byteToInt(colorCategory(col)));
-			}
-		}
+		int[] rgb = getPixels(source);
+		byte[] cat = indexBuffer(w*h);
+		for (int i=0;i<w*h;i++) cat[i] = colorCategory(rgb[i]);
+		sgm.getRaster().setDataElements(0, 0, w, h, cat);
 		return sgm;
 	}
 	
@@ -149,40 +145,46 @@ public class Segmenter {
 	public BufferedImage clusterKMeans(BufferedImage image, int k, int[] initialClusters) {
 		// Loop over the input, copy each pixel to the output, 
 		// converting them from sRGB to L*a*b* as we go
-        int bands = image.getSampleModel().getNumBands();
         int height = image.getHeight();
         int width = image.getWidth();
+		int npixels = height*width;
 		// override globals
 		byte[][] colormap = new byte[3][256];
 				
-		double[][] data=new double[height*width][bands];
-		int i=0;
-		Raster raster = image.getData();
-        for (int samp = 0; samp < width; samp++) {
-            for (int line = 0; line < height; line++) {
-				int r = raster.getSample(samp, line, 0);
-				int g = raster.getSample(samp, line, 1);
-				int b = raster.getSample(samp, line, 2);
-				// divide by 8 (15-bit color palette)
-				r=r>>3; g=g>>3; b=b>>3;
-				int index = r*32*32*3+g*32*3+b*3;
-				for (int mi=0;mi<3;mi++) {
-					data[i][mi] = (double)labLut[index+mi];					
+		int[] rgb = getPixels(image);
+		KMeans cluster = null;
+		int[] clases = null;
+		if (clusterColors && initialClusters != null) {
+			cluster = clusterColors(rgb, width, height, k, initialClusters);
+			clases = initialClusters;
+		}
+		if (cluster == null) {
+			if (samples == null || samples.length < 3*npixels) samples = new double[3*npixels];
+			double[] data = samples;
+			int i=0;
+			for (int samp = 0; samp < width; samp++) {
+				for (int line = 0; line < height; line++) {
+					int col = rgb[line*width+samp];
+					// divide by 8 (15-bit color palette)
+					int r=(col>>19)&0x1F, g=(col>>11)&0x1F, b=(col>>3)&0x1F;
+					int index = r*32*32*3+g*32*3+b*3;
+					for (int mi=0;mi<3;mi++) {
+						data[i++] = (double)labLut[index+mi];
+					}
 				}
-				i++;
 			}
+			
+			// apply K-Means
+			cluster = new KMeans(k,data,npixels,3,initialClusters);
+			clases = cluster.getAssignments();
 		}
 		
-		// apply K-Means
-		KMeans cluster = new KMeans(k,data,initialClusters);
-		int[] clases = cluster.getAssignments();
-		
 		// palette
 		double[][] means = cluster.getMeans();
 		// background color
 		colormap[0][0]=80; colormap[1][0]=80; colormap[2][0]=80;
 		double colorNorm = 1.0;
-		for (i = 0; i < k; i++) {
+		for (int i = 0; i < k; i++) {
 			float[] col = new float[3];
 			for (int j = 0; j < 3; j++) col[j] = (float)(colorNorm * means[i][j]);
 			col = Utilities.LabtosRGB(col);
@@ -193,12 +195,13 @@ public class Segmenter {
         BufferedImage outImage = createIndexedImage(image.getWidth(),
 													image.getHeight(), colormap);
 		
-		i=0;
-		WritableRaster wrasta = outImage.getRaster();
+		int i=0;
+		byte[] out = indexBuffer(npixels);
 		for (int samp = 0; samp < width; samp++) {
             for (int line = 0; line < height; line++)
-				wrasta.setSample(samp, line, 0, clases[i++]);
+				out[line*width+samp] = (byte)clases[i++];
 		}
+		outImage.getRaster().setDataElements(0, 0, width, height, out);
 		
 		//System.out.println(AMath.showMatrix(means));
 		return outImage;
@@ -206,6 +209,72 @@ public class Segmenter {
 	}
 	
 	
+	/**
+	 * K-Means of the 15-bit colors of the image, weighted by their number of
+	 * pixels. All the pixels of a color have the same L*a*b* in labLut, so
+	 * they always fall in the same cluster, and the clusters are the ones of
+	 * the pixels. The cost depends on the number of colors, at most a few
+	 * hundreds, and not on the size of the image.
+	 * <p>
+	 * The pixel clusters are left in initialClusters, in columns. Returns
+	 * null if the pixels of a color start in different clusters, then they
+	 * have to be clustered one by one.
+	 */
+	KMeans clusterColors(int[] rgb, int width, int height, int k, int[] initialClusters) {
+		int npixels = width*height;
+		if (binOf == null) binOf = new int[32768];
+		if (binColor == null || binColor.length < npixels) {
+			int size = Math.min(npixels, 32768);
+			binColor = new int[size];
+			binCount = new int[size];
+			binAssignment = new int[size];
+		}
+		
+		// the bins, in the order they appear
+		int nbins = 0;
+		boolean uniform = true;
+		int j=0;
+		for (int samp = 0; samp < width; samp++) {
+			for (int line = 0; line < height; line++) {
+				int col = rgb[line*width+samp];
+				// divide by 8 (15-bit color palette)
+				int c = ((col>>9)&0x7C00) | ((col>>6)&0x03E0) | ((col>>3)&0x001F);
+				int bin = binOf[c]-1;
+				if (bin < 0) {
+					bin = nbins++;
+					binOf[c] = bin+1;
+					binColor[bin] = c;
+					binCount[bin] = 0;
+					binAssignment[bin] = initialClusters[j];
+				} else if (binAssignment[bin] != initialClusters[j]) {
+					uniform = false;
+				}
+				binCount[bin]++;
+				j++;
+			}
+		}
+		
+		KMeans cluster = null;
+		if (uniform) {
+			if (samples == null || samples.length < 3*nbins) samples = new double[3*nbins];
+			for (int b=0;b<nbins;b++) {
+				for (int mi=0;mi<3;mi++) samples[3*b+mi] = (double)labLut[3*binColor[b]+mi];
+			}
+			cluster = new KMeans(k, samples, binCount, nbins, 3, binAssignment,
+								 KMeans.defaultMethod);
+			j=0;
+			for (int samp = 0; samp < width; samp++) {
+				for (int line = 0; line < height; line++) {
+					int col = rgb[line*width+samp];
+					int c = ((col>>9)&0x7C00) | ((col>>6)&0x03E0) | ((col>>3)&0x001F);
+					initialClusters[j++] = binAssignment[binOf[c]-1];
+				}
+			}
+		}
+		for (int b=0;b<nbins;b++) binOf[binColor[b]] = 0;
+		return cluster;
+	}
+	
 	/** Applies the MLP Color categorization and counts the number
 	  * of colors that are present at least MIN_SIZE %
 	  * We count the "unknown" pixels as a different category.
@@ -217,13 +286,9 @@ public class Segmenter {
 		
 		int ncats = 16;
 		int[] votes = new int[ncats+1];
-		Raster rasta = ccat.getData();
-        for (int samp = 0; samp < width; samp++) {
-            for (int line = 0; line < height; line++) {
-				int value = rasta.getSample(samp, line, 0);
-				votes[value]++;
-			}
-		}
+		byte[] cat = indexBuffer(height*width);
+		ccat.getRaster().getDataElements(0, 0, width, height, cat);
+		for (int i=0;i<height*width;i++) votes[cat[i]&0xFF]++;
 		
 		int r=0;
 		double npixels = height*width;
@@ -239,7 +304,7 @@ public class Segmenter {
 				int j=0;
 				for (int samp = 0; samp < width; samp++) {
 					for (int line = 0; line < height; line++) {
-						int cc = rasta.getSample(samp, line, 0);
+						int cc = cat[line*width+samp]&0xFF;
 						output[j++]= cc%r; 
 					}
 				}
@@ -249,6 +314,18 @@ public class Segmenter {
 		return r;
 	}
 	
+	/** The pixels of an image in the pixels buffer, see BufferedImage.getRGB() */
+	int[] getPixels(BufferedImage image) {
+		int w=image.getWidth(), h=image.getHeight();
+		if (pixels == null || pixels.length < w*h) pixels = new int[w*h];
+		return image.getRGB(0, 0, w, h, pixels, 0, w);
+	}
+	
+	byte[] indexBuffer(int size) {
+		if (indices == null || indices.length < size) indices = new byte[size];
+		return indices;
+	}
+	
 	/**
 	 * Instead of using the Graphics object to quantize a given src to the reference color
 	 * palette, we compute the distance in the L*a*b* color space in this function.
@@ -138,7 +138,8 @@ public class Boundary implements Runnable {
 			// quantize (using L*a*b* distance) and turn it to indexed image
 			sgm = segmenter.quantizeWithMinLab(sgm, segmented);
 
-			sgm = MOps2D.maxPercentil(sgm, 3);
+			sgm = MOps2D.maxPercentil(MOps2D.maxValue(sgm)+1, sgm, 3,
+											  Runtime.getRuntime().availableProcessors());
 			
 			BufferedImage outclipped = createClipped(outside, BufferedImage.TYPE_BYTE_BINARY);			
 			MOps2D.and(sgm, outclipped);
@@ -146,7 +147,7 @@ public class Boundary implements Runnable {
 			debug(sgm);
 			debug(sgm,"CQ");
 			
-			ColorLabel cl = new ColorLabel(sgm);
+			ColorLabel cl = new ColorLabel(sgm, null, Runtime.getRuntime().availableProcessors());
 			
 			out = createClipped(mask, BufferedImage.TYPE_BYTE_BINARY);
 			out = MOps2D.fill4(cl.getLabeledMatrix(), out);
@@ -252,7 +253,8 @@ public class Boundary implements Runnable {
 		sgm = segmenter.quantizeWithMinLab(sgm, segmented);
 		//debug(sgm);
 		// el orden de los factores altera el producto (!)
-		sgm = MOps2D.maxPercentil(sgm, 3);
+		sgm = MOps2D.maxPercentil(MOps2D.maxValue(sgm)+1, sgm, 3,
+										  Runtime.getRuntime().availableProcessors());
 		//debug(sgm);
 
 		BufferedImage outclipped = new BufferedImage(w, h,
@@ -265,7 +267,7 @@ public class Boundary implements Runnable {
 		
 		debug(sgm);
 		
-		ColorLabel cl = new ColorLabel(sgm);
+		ColorLabel cl = new ColorLabel(sgm, null, Runtime.getRuntime().availableProcessors());
 		System.out.println("setSegmented: "+cl.getNLabels()+" labels");
 		//debug(cl.getAsImage());
 		
@@ -0,0 +1,13 @@
+//
+//  Cancellable.java
+//  sketchRC
+//
+package titech.util;
+
+/**
+ * Some work that can be cancelled from another thread. The work checks
+ * isCancelled() every now and then and stops when it is true.
+ */
+public interface Cancellable {
+	public boolean isCancelled();
+}
@@ -0,0 +1,95 @@
+//
+//  KeywordIndex.java
+//  sketchRC
+//
+package titech.util;
+
+import java.util.*;
+
+/**
+ * Inverted index of the words of the locations of the images of a DB, to
+ * find the images that match the keywords of a query without looking at
+ * every location.
+ * <p>
+ * A location is split in words at every character that isn't a letter or a
+ * digit, so every directory and the file name give one or more words. The
+ * keywords of a query are split the same way, and an image matches when
+ * every keyword is the beginning of one of its words (case is ignored):
+ * "beach jun" matches /photos/Beach2006/june01.jpg.
+ */
+public class KeywordIndex {
+	/** Sorted ids of the images of every word */
+	TreeMap<String,Postings> words;
+
+	static class Postings {
+		int[] ids = new int[4];
+		int size = 0;
+
+		void add(int id) {
+			// the ids of an image are added together
+			if (size > 0 && ids[size-1] == id) return;
+			if (size == ids.length) {
+				int[] a = new int[2*size];
+				System.arraycopy(ids, 0, a, 0, size);
+				ids = a;
+			}
+			ids[size++] = id;
+		}
+	}
+
+	public KeywordIndex() {
+		words = new TreeMap<String,Postings>();
+	}
+
+	public void clear() {
+		words.clear();
+	}
+
+	/**
+	 * Adds the words of the location of an image. The ids have to be added
+	 * in increasing order.
+	 */
+	public void add(int id, String location) {
+		String[] tokens = tokens(location);
+		for (int i=0;i<tokens.length;i++) {
+			Postings p = words.get(tokens[i]);
+			if (p == null) {
+				p = new Postings();
+				words.put(tokens[i], p);
+			}
+			p.add(id);
+		}
+	}
+
+	/**
+	 * The ids of the images that match all the keywords, or null if there
+	 * are no keywords (then all the images match).
+	 */
+	public BitSet candidates(String keywords) {
+		if (keywords == null) return null;
+		String[] terms = tokens(keywords);
+		if (terms.length == 0) return null;
+		BitSet result = null;
+		for (int t=0;t<terms.length;t++) {
+			BitSet matches = new BitSet();
+			// all the words that start with the term
+			for (Postings p : words.subMap(terms[t], terms[t]+Character.MAX_VALUE).values()) {
+				for (int i=0;i<p.size;i++) matches.set(p.ids[i]);
+			}
+			if (result == null) result = matches;
+			else result.and(matches);
+			if (result.isEmpty()) break;
+		}
+		return result;
+	}
+
+	/** The words of a text, in lower case */
+	public static String[] tokens(String text) {
+		Vector<String> tokens = new Vector<String>();
+		String[] parts = text.toLowerCase().split("[^\\p{L}\\p{N}]+");
+		for (int i=0;i<parts.length;i++) {
+			if (parts[i].length() > 0) tokens.add(parts[i]);
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
+}
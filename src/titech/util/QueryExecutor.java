@@ -0,0 +1,104 @@
+//
+//  QueryExecutor.java
+//  sketchRC
+//
+package titech.util;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs the scans of the retrieval queries in parallel. The DB is split in
+ * chunks, every chunk is scored into its own TopK on a ForkJoinPool, and the
+ * TopKs are merged. The pool is shared by all the queries, so the strokes
+ * being retrieved at the same time don't start more threads than cores.
+ * <p>
+ * The result doesn't depend on the chunks, because TopK orders equal
+ * distances by id.
+ * <p>
+ * A query can be cancelled: every chunk checks it before being scored,
+ * and the chunks are small enough to stop within a few milliseconds.
+ */
+public class QueryExecutor {
+	/** Smallest number of images scanned by a task */
+	public static final int MIN_CHUNK = 2048;
+	/** Largest number of images scanned by a task, see Cancellable */
+	public static final int MAX_CHUNK = 16384;
+
+	/** Scores the images of a range */
+	public interface Scorer {
+		/** Offers the images from..to-1 to top */
+		void score(int from, int to, TopK top);
+	}
+
+	static final ForkJoinPool POOL =
+		new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Scores the n images of the DB and leaves the best top.capacity() of
+	 * them in top, not sorted yet.
+	 */
+	public static void search(int n, TopK top, Scorer scorer) {
+		search(n, top, scorer, null);
+	}
+
+	/**
+	 * The same, but it throws a CancellationException as soon as the query
+	 * is cancelled. cancel may be null.
+	 */
+	public static void search(int n, TopK top, Scorer scorer, Cancellable cancel) {
+		// a few chunks per thread, to balance the load
+		int chunk = Math.max(MIN_CHUNK, n/(4*POOL.getParallelism()));
+		chunk = Math.min(chunk, MAX_CHUNK);
+		search(n, chunk, top, scorer, cancel);
+	}
+
+	/**
+	 * The same, with tasks of chunk items at most: 1 to score every item in
+	 * its own task, when the items are large, like the graphs of
+	 * ImageRetrieval.
+	 */
+	public static void search(int n, int chunk, TopK top, Scorer scorer, Cancellable cancel) {
+		top.clear();
+		if (n <= chunk) {
+			check(cancel);
+			scorer.score(0, n, top);
+			return;
+		}
+		top.merge(POOL.invoke(new Scan(scorer, cancel, 0, n, chunk, top.capacity())));
+	}
+
+	static void check(Cancellable cancel) {
+		if (cancel != null && cancel.isCancelled()) throw new CancellationException();
+	}
+
+	static class Scan extends RecursiveTask<TopK> {
+		private static final long serialVersionUID = 1L;
+		Scorer scorer;
+		Cancellable cancel;
+		int from, to, chunk, k;
+
+		Scan(Scorer scorer, Cancellable cancel, int from, int to, int chunk, int k) {
+			this.scorer = scorer;
+			this.cancel = cancel;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+			this.k = k;
+		}
+
+		protected TopK compute() {
+			if (to-from <= chunk) {
+				check(cancel);
+				TopK top = new TopK(k);
+				scorer.score(from, to, top);
+				return top;
+			}
+			int middle = (from+to) >>> 1;
+			Scan left = new Scan(scorer, cancel, from, middle, chunk, k);
+			left.fork();
+			TopK top = new Scan(scorer, cancel, middle, to, chunk, k).compute();
+			top.merge(left.join());
+			return top;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+//
+//  TopK.java
+//  sketchRC
+//
+package titech.util;
+
+/**
+ * Keeps the k smallest values offered to it, with the id (and a label) of
+ * each one. It is a max-heap of primitive arrays, so the worst kept value
+ * is at the root and offering a candidate allocates nothing.
+ * <p>
+ * Equal values are ordered by id, so ties are kept and come out in the
+ * order they were found, like a stable sort of all the candidates would
+ * give them. To show page p of n results, make a TopK of (p+1)*n, sort()
+ * it, and read the entries from p*n on.
+ */
+public class TopK {
+	double[] values;
+	int[] ids;
+	int[] labels;
+	int size;
+	boolean sorted;
+
+	public TopK(int k) {
+		values = new double[k];
+		ids = new int[k];
+		labels = new int[k];
+		size = 0;
+		sorted = false;
+	}
+
+	/** Empties it, to select again */
+	public void clear() {
+		size = 0;
+		sorted = false;
+	}
+
+	public int capacity() {
+		return values.length;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The largest value that can still get in: the worst kept value once
+	 * it is full, or +infinity before.
+	 */
+	public double bound() {
+		if (size < values.length) return Double.POSITIVE_INFINITY;
+		return values[0];
+	}
+
+	public boolean offer(double value, int id) {
+		return offer(value, id, 0);
+	}
+
+	/** Keeps the candidate if it is among the k best. */
+	public boolean offer(double value, int id, int label) {
+		if (sorted) throw new IllegalStateException("TopK: already sorted");
+		if (size < values.length) {
+			int i = size++;
+			// sift up
+			while (i > 0) {
+				int parent = (i-1)/2;
+				if (!greater(value, id, values[parent], ids[parent])) break;
+				set(i, parent);
+				i = parent;
+			}
+			values[i] = value; ids[i] = id; labels[i] = label;
+			return true;
+		}
+		if (size == 0 || !greater(values[0], ids[0], value, id)) return false;
+		siftDown(0, size, value, id, label);
+		return true;
+	}
+
+	/** Offers all the entries kept by another TopK */
+	public void merge(TopK other) {
+		for (int i=0;i<other.size;i++) {
+			offer(other.values[i], other.ids[i], other.labels[i]);
+		}
+	}
+
+	/**
+	 * Sorts the kept entries from best to worst, in place. After this,
+	 * value(i), id(i) and label(i) give the i-th best one. Returns size().
+	 */
+	public int sort() {
+		if (sorted) return size;
+		// heapsort: move the root to the end of the heap, one at a time
+		for (int n=size-1;n>0;n--) {
+			double value = values[n];
+			int id = ids[n], label = labels[n];
+			set(n, 0);
+			siftDown(0, n, value, id, label);
+		}
+		sorted = true;
+		return size;
+	}
+
+	public double value(int i) {
+		return values[i];
+	}
+
+	public int id(int i) {
+		return ids[i];
+	}
+
+	public int label(int i) {
+		return labels[i];
+	}
+
+	/** Puts the entry in the hole at i of a heap of n, moving down the hole */
+	void siftDown(int i, int n, double value, int id, int label) {
+		while (true) {
+			int child = 2*i+1;
+			if (child >= n) break;
+			if (child+1 < n && greater(values[child+1], ids[child+1], values[child], ids[child]))
+				child++;
+			if (!greater(values[child], ids[child], value, id)) break;
+			set(i, child);
+			i = child;
+		}
+		values[i] = value; ids[i] = id; labels[i] = label;
+	}
+
+	void set(int i, int j) {
+		values[i] = values[j]; ids[i] = ids[j]; labels[i] = labels[j];
+	}
+
+	/** True if (v1, id1) goes after (v2, id2) */
+	public static boolean greater(double v1, int id1, double v2, int id2) {
+		return v1 > v2 || (v1 == v2 && id1 > id2);
+	}
+}
@@ -176,7 +176,44 @@ public class Utilities {
 	public static BufferedImage loadImage(String filepath) throws IOException {
 		return loadImage(new File(filepath));
 	}
-  
+
+	/**
+	 * Loads a reduced version of the image, such that its smaller side is
+	 * still at least minSize pixels (the same convention as resize(image,newSize)).
+	 * The reader skips the pixels with ImageReadParam source subsampling,
+	 * so the full resolution image is never kept in memory.
+	 * Readers that can't subsample read the whole image.
+	 */
+	public static BufferedImage loadImage(File f, int minSize) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(f);
+		if (iis == null) return loadImage(f);
+		BufferedImage img = null;
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (readers.hasNext()) {
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(iis, true, true);
+					int w = reader.getWidth(0);
+					int h = reader.getHeight(0);
+					int step = Math.max(1, Math.min(w, h) / minSize);
+					ImageReadParam param = reader.getDefaultReadParam();
+					if (step > 1) param.setSourceSubsampling(step, step, 0, 0);
+					img = reader.read(0, param);
+				} catch (Exception e) {
+					// this reader can't subsample, try the usual way
+					img = null;
+				} finally {
+					reader.dispose();
+				}
+			}
+		} finally {
+			iis.close();
+		}
+		if (img == null) img = loadImage(f);
+		return img;
+	}
+
 	public static BufferedImage loadIndexedImage(String filepath) throws Exception {
 		return loadIndexedImage(new File(filepath));
 	}